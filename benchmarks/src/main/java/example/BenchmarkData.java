@@ -0,0 +1,167 @@
+package example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * Sample data of the demo, read from the files directory of the project (-Dbenchmark.files=<dir>,
+ * ../files by default): organizations.csv turned into the JSON messages produced to the stream, and the
+ * GDP_PER_CAPTA_COUNTRY.csv dimension.
+ */
+final class BenchmarkData {
+
+	// The decode.schema and enrichment of pipeline.properties.
+	static final StructType ORGANIZATION_SCHEMA = StructType.fromDDL("`Organization Id` STRING, Name STRING, Country STRING");
+	static final StructType GDP_SCHEMA = new StructType()
+			.add("country", DataTypes.StringType)
+			.add("area", DataTypes.DoubleType);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private BenchmarkData() {
+	}
+
+	/*
+	 * One JSON message per organizations.csv row, with every column of the file.
+	 */
+	static List<byte[]> organizationMessages() throws IOException {
+		List<String[]> rows = readCsv("organizations.csv");
+		String[] header = rows.get(0);
+		List<byte[]> messages = new ArrayList<>();
+		for (String[] row : rows.subList(1, rows.size())) {
+			ObjectNode message = MAPPER.createObjectNode();
+			for (int i = 0; i < header.length; i++) {
+				String value = i < row.length ? row[i] : "";
+				if (value.matches("\\d+")) {
+					message.put(header[i], Long.parseLong(value));
+				} else {
+					message.put(header[i], value);
+				}
+			}
+			messages.add(MAPPER.writeValueAsBytes(message));
+		}
+		return messages;
+	}
+
+	/*
+	 * Name and type ("number" or "string") of every organizations.csv column, as in the messages.
+	 */
+	static List<String[]> organizationColumns() throws IOException {
+		List<String[]> rows = readCsv("organizations.csv");
+		String[] header = rows.get(0);
+		List<String[]> columns = new ArrayList<>();
+		for (int i = 0; i < header.length; i++) {
+			boolean number = true;
+			for (String[] row : rows.subList(1, rows.size())) {
+				if (i >= row.length || !row[i].matches("\\d+")) {
+					number = false;
+					break;
+				}
+			}
+			columns.add(new String[] { header[i], number ? "number" : "string" });
+		}
+		return columns;
+	}
+
+	/*
+	 * The organization messages decoded with ORGANIZATION_SCHEMA.
+	 */
+	static List<Row> organizationRows() throws IOException {
+		JsonValueDecoder decoder = new JsonValueDecoder(ORGANIZATION_SCHEMA);
+		List<Row> decoded = new ArrayList<>();
+		Iterator<Row> rows = decoder.call(messageRows(organizationMessages()).iterator());
+		while (rows.hasNext()) {
+			Row row = rows.next();
+			Object[] values = new Object[ORGANIZATION_SCHEMA.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = row.get(i);
+			}
+			decoded.add(RowFactory.create(values));
+		}
+		return decoded;
+	}
+
+	/*
+	 * country and area of GDP_PER_CAPTA_COUNTRY.csv, as loaded by the enrichment.
+	 */
+	static List<Row> gdpRows() throws IOException {
+		List<String[]> rows = readCsv("GDP_PER_CAPTA_COUNTRY.csv");
+		List<String> header = Arrays.asList(rows.get(0));
+		int country = header.indexOf("country");
+		int area = header.indexOf("area");
+		List<Row> gdp = new ArrayList<>();
+		for (String[] row : rows.subList(1, rows.size())) {
+			gdp.add(RowFactory.create(row[country], row[area].isEmpty() ? null : Double.valueOf(row[area])));
+		}
+		return gdp;
+	}
+
+	static Map<String, Row> gdpLookupTable() throws IOException {
+		return DimensionCache.index(gdpRows(), GDP_SCHEMA, "country");
+	}
+
+	static List<Row> messageRows(List<byte[]> messages) {
+		List<Row> rows = new ArrayList<>(messages.size());
+		for (byte[] message : messages) {
+			rows.add(RowFactory.create((Object) message));
+		}
+		return rows;
+	}
+
+	static File file(String name) {
+		return new File(System.getProperty("benchmark.files", "../files"), name);
+	}
+
+	private static List<String[]> readCsv(String name) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		for (String line : Files.readAllLines(file(name).toPath(), StandardCharsets.UTF_8)) {
+			if (!line.isEmpty()) {
+				rows.add(parseCsvLine(line));
+			}
+		}
+		return rows;
+	}
+
+	private static String[] parseCsvLine(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,73 @@
+package example;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.util.LongAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The map-side join of DimensionCache: decoded organizations looked up by Country in the GDP table.
+ * Scores are stream rows per second, with and without the hit/miss counters of PipelineMetrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnrichmentLookupBenchmark {
+
+	private static final int ROWS = 100;
+
+	@Param({"false", "true"})
+	public boolean counters;
+
+	private Row[] stream;
+	private Map<String, Row> table;
+	private int keyIndex;
+	private LongAccumulator hits;
+	private LongAccumulator misses;
+
+	@Setup
+	public void setup() throws IOException {
+		List<Row> organizations = BenchmarkData.organizationRows();
+		stream = new Row[ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			stream[i] = organizations.get(i % organizations.size());
+		}
+		table = BenchmarkData.gdpLookupTable();
+		keyIndex = DimensionCache.indexOf(BenchmarkData.ORGANIZATION_SCHEMA, "Country");
+		if (counters) {
+			hits = new LongAccumulator();
+			misses = new LongAccumulator();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void lookup(Blackhole blackhole) {
+		Iterator<Row> joined = DimensionCache.lookup(table, keyIndex, Arrays.asList(stream).iterator(),
+				hits, misses);
+		while (joined.hasNext()) {
+			blackhole.consume(joined.next());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package example;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.types.StructField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * JsonValueDecoder.decode of one organizations message into the decode.schema fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonDecodeBenchmark {
+
+	private byte[][] messages;
+	private StructField[] fields;
+	private Map<String, Integer> positions;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		List<byte[]> list = BenchmarkData.organizationMessages();
+		messages = list.toArray(new byte[0][]);
+		fields = BenchmarkData.ORGANIZATION_SCHEMA.fields();
+		positions = new HashMap<>();
+		for (int i = 0; i < fields.length; i++) {
+			positions.put(fields[i].name(), i);
+		}
+	}
+
+	@Benchmark
+	public Object[] decode() throws IOException {
+		byte[] message = messages[next];
+		if (++next == messages.length) {
+			next = 0;
+		}
+		Object[] values = new Object[fields.length + 1];
+		JsonValueDecoder.decode(message, fields, positions, values);
+		return values;
+	}
+}
@@ -0,0 +1,87 @@
+package example;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The request filter of OboTokenClientConfigurator, which adds the delegation token to every OCI request,
+ * on one thread and on several threads sharing the token cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OboTokenFilterBenchmark {
+
+	private Path tokenFile;
+	private ClientRequestFilter filter;
+
+	@State(Scope.Thread)
+	public static class Request {
+
+		ClientRequestContext context;
+
+		@Setup
+		public void setup() {
+			MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+			context = (ClientRequestContext) Proxy.newProxyInstance(ClientRequestContext.class.getClassLoader(),
+					new Class<?>[]{ClientRequestContext.class}, (proxy, method, args) -> {
+						if (method.getName().equals("getHeaders")) {
+							return headers;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					});
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder token = new StringBuilder();
+		while (token.length() < 2048) {
+			token.append("eyJhbGciOiJSUzI1NiIsImtpZCI6ImFzdyJ9");
+		}
+		tokenFile = Files.createTempFile("delegation", ".token");
+		Files.write(tokenFile, token.toString().getBytes(StandardCharsets.UTF_8));
+		filter = new OboTokenClientConfigurator(tokenFile.toString()).new _OboTokenRequestFilter();
+	}
+
+	@Benchmark
+	public void filter(Request request) throws IOException {
+		filter.filter(request.context);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void filterContended(Request request) throws IOException {
+		filter.filter(request.context);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(tokenFile);
+	}
+}
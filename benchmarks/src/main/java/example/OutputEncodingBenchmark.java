@@ -0,0 +1,90 @@
+package example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encoding of enriched output rows by the csv and parquet sinks, through a local single-core Spark
+ * session writing one file per invocation. Scores are output rows per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OutputEncodingBenchmark {
+
+	private static final int ROWS = 50000;
+
+	@Param({"csv", "parquet"})
+	public String format;
+
+	private SparkSession spark;
+	private Dataset<Row> output;
+	private Path directory;
+
+	@Setup
+	public void setup() throws IOException {
+		spark = SparkSession.builder().master("local[1]").appName("OutputEncodingBenchmark")
+				.config("spark.ui.enabled", "false").getOrCreate();
+		StructType schema = BenchmarkData.ORGANIZATION_SCHEMA;
+		for (StructField field : BenchmarkData.GDP_SCHEMA.fields()) {
+			if (!field.name().equals("country")) {
+				schema = schema.add(field);
+			}
+		}
+		List<Row> enriched = new ArrayList<>();
+		int keyIndex = DimensionCache.indexOf(BenchmarkData.ORGANIZATION_SCHEMA, "Country");
+		Iterator<Row> joined = DimensionCache.lookup(BenchmarkData.gdpLookupTable(), keyIndex,
+				BenchmarkData.organizationRows().iterator(), null, null);
+		while (joined.hasNext()) {
+			enriched.add(joined.next());
+		}
+		List<Row> rows = new ArrayList<>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			rows.add(enriched.get(i % enriched.size()));
+		}
+		output = spark.createDataFrame(rows, schema).coalesce(1).cache();
+		output.count();
+		directory = Files.createTempDirectory("output-encoding");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void write() {
+		output.write().mode(SaveMode.Overwrite).format(format).save(directory.resolve(format).toString());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		spark.stop();
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+}
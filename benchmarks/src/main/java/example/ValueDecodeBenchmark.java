@@ -0,0 +1,143 @@
+package example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+
+/*
+ * The same organizations records (every column of organizations.csv) decoded into the decode.schema fields
+ * from JSON, Avro and Protobuf values. The average message size of each format is printed at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueDecodeBenchmark {
+
+	@Param({ "json", "avro", "protobuf" })
+	public String format;
+
+	private byte[][] messages;
+	private ValueDecoder.RecordDecoder decoder;
+	private int width;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		List<byte[]> json = BenchmarkData.organizationMessages();
+		StructType full = fullSchema();
+		List<Row> rows = decodeAll(new JsonValueDecoder(full), json);
+
+		List<byte[]> encoded;
+		ValueDecoder valueDecoder;
+		if ("avro".equals(format)) {
+			AvroRowSerializer serializer = new AvroRowSerializer(full, "Organization", "example");
+			encoded = new ArrayList<>();
+			Iterator<Row> values = serializer.call(rows.iterator());
+			while (values.hasNext()) {
+				encoded.add((byte[]) values.next().get(0));
+			}
+			valueDecoder = new AvroValueDecoder(BenchmarkData.ORGANIZATION_SCHEMA, serializer.getSchema().toString());
+		} else if ("protobuf".equals(format)) {
+			FileDescriptorProto file = protoFile(full);
+			Descriptor type = FileDescriptor.buildFrom(file, new FileDescriptor[0]).findMessageTypeByName("Organization");
+			encoded = new ArrayList<>();
+			for (Row row : rows) {
+				DynamicMessage.Builder message = DynamicMessage.newBuilder(type);
+				for (int i = 0; i < full.size(); i++) {
+					if (!row.isNullAt(i)) {
+						message.setField(type.getFields().get(i), row.get(i));
+					}
+				}
+				encoded.add(message.build().toByteArray());
+			}
+			valueDecoder = new ProtobufValueDecoder(BenchmarkData.ORGANIZATION_SCHEMA,
+					FileDescriptorSet.newBuilder().addFile(file).build().toByteArray(), "Organization");
+		} else {
+			encoded = json;
+			valueDecoder = new JsonValueDecoder(BenchmarkData.ORGANIZATION_SCHEMA);
+		}
+
+		messages = encoded.toArray(new byte[0][]);
+		long bytes = 0;
+		for (byte[] message : messages) {
+			bytes += message.length;
+		}
+		System.out.println(format + ": " + (bytes / messages.length) + " bytes per message");
+		decoder = valueDecoder.newRecordDecoder();
+		width = BenchmarkData.ORGANIZATION_SCHEMA.size() + 1;
+	}
+
+	@Benchmark
+	public Object[] decode() throws Exception {
+		byte[] message = messages[next];
+		if (++next == messages.length) {
+			next = 0;
+		}
+		Object[] values = new Object[width];
+		decoder.decode(message, values);
+		return values;
+	}
+
+	/*
+	 * All the columns of the messages: numbers as longs, everything else as strings.
+	 */
+	private static StructType fullSchema() throws IOException {
+		StructType schema = new StructType();
+		for (String[] column : BenchmarkData.organizationColumns()) {
+			schema = schema.add(column[0], "number".equals(column[1]) ? DataTypes.LongType : DataTypes.StringType);
+		}
+		return schema;
+	}
+
+	private static List<Row> decodeAll(ValueDecoder decoder, List<byte[]> messages) {
+		List<Row> rows = new ArrayList<>();
+		Iterator<Row> decoded = decoder.call(BenchmarkData.messageRows(messages).iterator());
+		while (decoded.hasNext()) {
+			rows.add(decoded.next());
+		}
+		return rows;
+	}
+
+	private static FileDescriptorProto protoFile(StructType schema) {
+		DescriptorProto.Builder message = DescriptorProto.newBuilder().setName("Organization");
+		int number = 1;
+		for (StructField field : schema.fields()) {
+			message.addField(FieldDescriptorProto.newBuilder()
+					.setName(field.name().toLowerCase().replaceAll("[^a-z0-9_]", "_"))
+					.setNumber(number++)
+					.setType(DataTypes.LongType.equals(field.dataType()) ? FieldDescriptorProto.Type.TYPE_INT64
+							: FieldDescriptorProto.Type.TYPE_STRING));
+		}
+		return FileDescriptorProto.newBuilder().setName("organization.proto").setSyntax("proto3")
+				.addMessageType(message).build();
+	}
+}
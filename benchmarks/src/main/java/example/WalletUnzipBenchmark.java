@@ -0,0 +1,70 @@
+package example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * DataFlowDeployWallet.unzip of a wallet-sized archive (the files of an ADW wallet, a few KB each) from
+ * memory to a local directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletUnzipBenchmark {
+
+	private static final String[] WALLET_FILES = {"cwallet.sso", "ewallet.p12", "keystore.jks", "ojdbc.properties",
+			"sqlnet.ora", "tnsnames.ora", "truststore.jks", "README"};
+
+	private byte[] wallet;
+	private Path directory;
+
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream out = new ZipOutputStream(zip)) {
+			for (String name : WALLET_FILES) {
+				byte[] content = new byte[2048 + random.nextInt(6144)];
+				random.nextBytes(content);
+				out.putNextEntry(new ZipEntry(name));
+				out.write(content);
+				out.closeEntry();
+			}
+		}
+		wallet = zip.toByteArray();
+		directory = Files.createTempDirectory("wallet-unzip");
+	}
+
+	@Benchmark
+	public void unzip() throws IOException {
+		DataFlowDeployWallet.unzip(new ByteArrayInputStream(wallet), directory.toString());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+}
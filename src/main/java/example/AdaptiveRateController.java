@@ -0,0 +1,175 @@
+package example;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.StreamingQueryListener;
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
+
+/*
+ * Sizes the Kafka micro-batches from the progress of the streaming query, to hold a target latency.
+ *
+ * After every batch the processing rate (input rows / batch duration, smoothed) gives the offsets that can
+ * be processed within the target latency, which becomes the next maxOffsetsPerTrigger, and the trigger
+ * interval is whatever the batch leaves of the target latency. Both stay within their min/max bounds. The
+ * cap only shrinks when a batch was slower than the target and only grows when a batch was capped and
+ * faster, so a catch-up after an outage is read in bounded batches instead of one huge one.
+ *
+ * The Kafka source and the trigger only read their settings when the query starts, so new settings are
+ * applied by restarting the query from its checkpoint. That only happens when a setting moved by more than
+ * restartThreshold, and at most every minBatchesBetweenRestarts batches; see awaitTermination().
+ */
+public class AdaptiveRateController extends StreamingQueryListener {
+
+	private static final Logger log = LogManager.getLogger(AdaptiveRateController.class);
+
+	private static final double SMOOTHING = 0.3;
+
+	private final long targetLatencyMs;
+	private final long minOffsets;
+	private final long maxOffsets;
+	private final long minIntervalMs;
+	private final long maxIntervalMs;
+	private final double restartThreshold;
+	private final int minBatchesBetweenRestarts;
+
+	private volatile UUID queryId;
+	private volatile long appliedOffsets;
+	private volatile long appliedIntervalMs;
+	private volatile long offsets;
+	private volatile long intervalMs;
+	private volatile double rowsPerSecond;
+	private volatile boolean restartRequested;
+	private int batchesSinceRestart;
+
+	private final AtomicLong decisions = new AtomicLong();
+	private final AtomicLong restarts = new AtomicLong();
+
+	public AdaptiveRateController(long targetLatencyMs, long minOffsets, long maxOffsets, long minIntervalMs,
+								  long maxIntervalMs, double restartThreshold, int minBatchesBetweenRestarts) {
+		this.targetLatencyMs = targetLatencyMs;
+		this.minOffsets = minOffsets;
+		this.maxOffsets = maxOffsets;
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.restartThreshold = restartThreshold;
+		this.minBatchesBetweenRestarts = minBatchesBetweenRestarts;
+		this.offsets = minOffsets;
+		this.intervalMs = clamp(targetLatencyMs / 2, minIntervalMs, maxIntervalMs);
+	}
+
+	/*
+	 * Starting values, e.g. from kafka.maxOffsetsPerTrigger and trigger.interval, clamped to the bounds.
+	 */
+	public AdaptiveRateController withInitial(long offsets, long intervalMs) {
+		this.offsets = clamp(offsets, minOffsets, maxOffsets);
+		this.intervalMs = clamp(intervalMs, minIntervalMs, maxIntervalMs);
+		return this;
+	}
+
+	public long getMaxOffsetsPerTrigger() {
+		return offsets;
+	}
+
+	public long getTriggerIntervalMs() {
+		return intervalMs;
+	}
+
+	public double getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public long getDecisions() {
+		return decisions.get();
+	}
+
+	public long getRestarts() {
+		return restarts.get();
+	}
+
+	/*
+	 * Records the settings query was started with; progress of other queries is ignored.
+	 */
+	public synchronized void attach(StreamingQuery query) {
+		this.queryId = query.id();
+		this.appliedOffsets = offsets;
+		this.appliedIntervalMs = intervalMs;
+		this.restartRequested = false;
+		this.batchesSinceRestart = 0;
+	}
+
+	/*
+	 * Waits for query to terminate, or stops it when new settings must be applied. Returns true in the
+	 * latter case: start the query again with getMaxOffsetsPerTrigger() and getTriggerIntervalMs().
+	 */
+	public boolean awaitTermination(StreamingQuery query) throws Exception {
+		while (!query.awaitTermination(1000)) {
+			if (restartRequested) {
+				log.info("Restarting query " + query.id() + " with maxOffsetsPerTrigger=" + offsets
+						+ " trigger=" + intervalMs + " ms");
+				query.stop();
+				restarts.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void onQueryStarted(QueryStartedEvent event) {
+	}
+
+	@Override
+	public synchronized void onQueryProgress(QueryProgressEvent event) {
+		StreamingQueryProgress progress = event.progress();
+		if (!progress.id().equals(queryId)) {
+			return;
+		}
+		batchesSinceRestart++;
+		long rows = progress.numInputRows();
+		Map<String, Long> durations = progress.durationMs();
+		Long durationMs = durations.get("triggerExecution");
+		if (rows == 0 || durationMs == null || durationMs == 0) {
+			return;
+		}
+
+		double rate = rows * 1000.0 / durationMs;
+		rowsPerSecond = rowsPerSecond == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * rowsPerSecond;
+		long sustainable = clamp((long) (rowsPerSecond * targetLatencyMs / 1000), minOffsets, maxOffsets);
+
+		long nextOffsets = offsets;
+		if (durationMs > targetLatencyMs || (rows >= offsets && sustainable > offsets)) {
+			nextOffsets = sustainable;
+		}
+		long nextIntervalMs = clamp(targetLatencyMs - durationMs, minIntervalMs, maxIntervalMs);
+		offsets = nextOffsets;
+		intervalMs = nextIntervalMs;
+		decisions.incrementAndGet();
+
+		boolean restart = batchesSinceRestart >= minBatchesBetweenRestarts
+				&& (changed(appliedOffsets, nextOffsets) || changed(appliedIntervalMs, nextIntervalMs));
+		log.info("Batch " + progress.batchId() + ": " + rows + " rows in " + durationMs + " ms ("
+				+ Math.round(rate) + " rows/s, smoothed " + Math.round(rowsPerSecond) + "), maxOffsetsPerTrigger "
+				+ appliedOffsets + " -> " + nextOffsets + ", trigger " + appliedIntervalMs + " -> " + nextIntervalMs
+				+ " ms" + (restart ? ", restart requested" : ""));
+		if (restart) {
+			restartRequested = true;
+		}
+	}
+
+	@Override
+	public void onQueryTerminated(QueryTerminatedEvent event) {
+	}
+
+	private boolean changed(long applied, long next) {
+		return Math.abs(next - applied) > applied * restartThreshold;
+	}
+
+	private static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
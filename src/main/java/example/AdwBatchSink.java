@@ -0,0 +1,255 @@
+package example;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import org.apache.spark.SparkFiles;
+import org.apache.spark.api.java.function.ForeachPartitionFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import oracle.ucp.UniversalConnectionPoolException;
+import oracle.ucp.admin.UniversalConnectionPoolManagerImpl;
+import oracle.ucp.jdbc.PoolDataSource;
+import oracle.ucp.jdbc.PoolDataSourceFactory;
+
+/*
+ * Writes every micro-batch to an ADW table with batched JDBC MERGE statements.
+ *
+ * Each partition borrows one connection from a UCP pool kept per executor JVM, binds the rows in JDBC
+ * batches of batchSize and commits once. The number of partitions written concurrently is bounded by
+ * maxWriters. Rows are merged on (BATCH_ID, keyColumn) and only inserted when not matched, so a retried
+ * micro-batch does not duplicate rows; of the rows of a batch sharing a key, one is written. The target
+ * table needs a BATCH_ID NUMBER column besides the columns of the batch (booleans go to NUMBER(1) columns
+ * as 1/0), e.g.:
+ *
+ *   CREATE TABLE organizations_gdp (batch_id NUMBER, organization VARCHAR2(64), name VARCHAR2(256),
+ *       country VARCHAR2(128), area NUMBER, PRIMARY KEY (batch_id, organization))
+ *
+ * The wallet must have been deployed with DataFlowDeployWallet, so it can be found in SparkFiles. The password
+ * is read on the driver from the secret cache and broadcast, executors never call Vault; a rotated password
+ * is picked up on the next micro-batch with a new pool, and the pool of the old one is closed.
+ */
+public class AdwBatchSink implements BatchSink {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(AdwBatchSink.class);
+
+	public static final String BATCH_ID_COLUMN = "BATCH_ID";
+
+	// One pool per executor JVM and database user, shared by all the tasks that write to ADW.
+	private static final Map<String, Pool> POOLS = new ConcurrentHashMap<>();
+	private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+	// The password the pool connects with, compared to the current secret to detect a rotation.
+	private static final class Pool {
+		final PoolDataSource dataSource;
+		final String password;
+
+		Pool(PoolDataSource dataSource, String password) {
+			this.dataSource = dataSource;
+			this.password = password;
+		}
+	}
+
+	private final String name;
+	private final String table;
+	private final String keyColumn;
+	private final String tnsName;
+	private final String user;
+	private final String passwordSecretOcid;
+	private final transient CachingSecretProvider secrets;
+	private final int batchSize;
+	private final int maxWriters;
+	private final int poolSize;
+
+	public AdwBatchSink(String name, String table, String keyColumn, String tnsName, String user,
+						CachingSecretProvider secrets, String passwordSecretOcid, int batchSize, int maxWriters, int poolSize) {
+		this.name = name;
+		this.table = table;
+		this.keyColumn = keyColumn;
+		this.tnsName = tnsName;
+		this.user = user;
+		this.secrets = secrets;
+		this.passwordSecretOcid = passwordSecretOcid;
+		this.batchSize = batchSize;
+		this.maxWriters = maxWriters;
+		this.poolSize = poolSize;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void write(Dataset<Row> batch, long batchId) {
+		StructType schema = batch.schema();
+		String key = schema.fields()[DimensionCache.indexOf(schema, keyColumn)].name();
+		String merge = mergeStatement(schema);
+		Broadcast<String> password = secrets.broadcast(batch.sparkSession().sparkContext(), passwordSecretOcid);
+		// Rows sharing a key would all take the NOT MATCHED branch, and all but the first violate the primary
+		// key on every retry of the batch (e.g. without dedup.key): keep one per key.
+		Dataset<Row> unique = batch.dropDuplicates(key);
+		Dataset<Row> writers = unique.rdd().getNumPartitions() > maxWriters ? unique.coalesce(maxWriters) : unique;
+		writers.foreachPartition((ForeachPartitionFunction<Row>) rows ->
+				writePartition(rows, schema, merge, batchId, password.value()));
+	}
+
+	private void writePartition(Iterator<Row> rows, StructType schema, String merge, long batchId, String password)
+			throws SQLException {
+		if (!rows.hasNext()) {
+			return;
+		}
+		StructField[] fields = schema.fields();
+		int[] sqlTypes = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			sqlTypes[i] = sqlType(fields[i].dataType());
+		}
+		try (Connection connection = pool(password).getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(merge)) {
+				int pending = 0;
+				while (rows.hasNext()) {
+					Row row = rows.next();
+					statement.setLong(1, batchId);
+					for (int i = 0; i < fields.length; i++) {
+						if (row.isNullAt(i)) {
+							statement.setNull(i + 2, sqlTypes[i]);
+						} else if (row.get(i) instanceof Boolean) {
+							statement.setInt(i + 2, row.getBoolean(i) ? 1 : 0);
+						} else {
+							statement.setObject(i + 2, row.get(i), sqlTypes[i]);
+						}
+					}
+					statement.addBatch();
+					if (++pending == batchSize) {
+						statement.executeBatch();
+						pending = 0;
+					}
+				}
+				if (pending > 0) {
+					statement.executeBatch();
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+	}
+
+	private PoolDataSource pool(String password) throws SQLException {
+		String tnsAdmin = SparkFiles.getRootDirectory();
+		String url = "jdbc:oracle:thin:@" + tnsName + "?TNS_ADMIN=" + tnsAdmin;
+		String key = url + "|" + user;
+		Pool pool = POOLS.get(key);
+		if (pool == null || !pool.password.equals(password)) {
+			synchronized (POOLS) {
+				pool = POOLS.get(key);
+				if (pool == null || !pool.password.equals(password)) {
+					PoolDataSource dataSource = PoolDataSourceFactory.getPoolDataSource();
+					dataSource.setConnectionPoolName("adw-" + user + "-" + POOL_IDS.incrementAndGet());
+					dataSource.setConnectionFactoryClassName("oracle.jdbc.pool.OracleDataSource");
+					dataSource.setURL(url);
+					dataSource.setUser(user);
+					dataSource.setPassword(password);
+					dataSource.setInitialPoolSize(1);
+					dataSource.setMaxPoolSize(poolSize);
+					dataSource.setValidateConnectionOnBorrow(true);
+					if (pool != null) {
+						close(pool.dataSource);
+					}
+					pool = new Pool(dataSource, password);
+					POOLS.put(key, pool);
+				}
+			}
+		}
+		return pool.dataSource;
+	}
+
+	/*
+	 * Closes the connections of a pool replaced after a password rotation. A task of the previous batch still
+	 * writing with one of them fails and is retried with the new pool.
+	 */
+	private static void close(PoolDataSource dataSource) {
+		try {
+			UniversalConnectionPoolManagerImpl.getUniversalConnectionPoolManager()
+					.destroyConnectionPool(dataSource.getConnectionPoolName());
+		} catch (UniversalConnectionPoolException e) {
+			// e.g. a pool that never opened a connection is not registered
+			log.warn("Failed to close connection pool " + dataSource.getConnectionPoolName() + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * MERGE keyed on (BATCH_ID, keyColumn) that only inserts rows not written yet. Parameter 1 is the
+	 * batch id, followed by the columns of the batch in schema order.
+	 */
+	String mergeStatement(StructType schema) {
+		StringBuilder select = new StringBuilder("SELECT ? AS ").append(BATCH_ID_COLUMN);
+		StringBuilder columns = new StringBuilder(BATCH_ID_COLUMN);
+		StringBuilder values = new StringBuilder("s.").append(BATCH_ID_COLUMN);
+		for (String field : schema.fieldNames()) {
+			String column = identifier(field);
+			select.append(", ? AS ").append(column);
+			columns.append(", ").append(column);
+			values.append(", s.").append(column);
+		}
+		String key = identifier(keyColumn);
+		return "MERGE INTO " + table + " t USING (" + select + " FROM dual) s"
+				+ " ON (t." + BATCH_ID_COLUMN + " = s." + BATCH_ID_COLUMN + " AND t." + key + " = s." + key + ")"
+				+ " WHEN NOT MATCHED THEN INSERT (" + columns + ") VALUES (" + values + ")";
+	}
+
+	private static String identifier(String column) {
+		if (!column.matches("[A-Za-z][A-Za-z0-9_$#]*")) {
+			throw new IllegalArgumentException("Column " + column + " is not a valid ADW identifier, alias it first");
+		}
+		return column.toUpperCase();
+	}
+
+	private static int sqlType(DataType type) {
+		if (DataTypes.StringType.equals(type)) {
+			return Types.VARCHAR;
+		}
+		if (DataTypes.LongType.equals(type)) {
+			return Types.BIGINT;
+		}
+		if (DataTypes.IntegerType.equals(type) || DataTypes.ShortType.equals(type) || DataTypes.ByteType.equals(type)) {
+			return Types.INTEGER;
+		}
+		if (DataTypes.DoubleType.equals(type) || DataTypes.FloatType.equals(type)) {
+			return Types.DOUBLE;
+		}
+		if (DataTypes.BooleanType.equals(type)) {
+			// No BOOLEAN in ADW 18c SQL, bound as 1/0
+			return Types.NUMERIC;
+		}
+		if (DataTypes.TimestampType.equals(type)) {
+			return Types.TIMESTAMP;
+		}
+		if (DataTypes.DateType.equals(type)) {
+			return Types.DATE;
+		}
+		if (DataTypes.BinaryType.equals(type)) {
+			return Types.VARBINARY;
+		}
+		return Types.NUMERIC;
+	}
+}
@@ -0,0 +1,154 @@
+package example;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+
+/*
+ * Parallel reads of ADW tables through the jdbc (or Data Flow oracle) source.
+ *
+ * The table is read as a "dbtable" subquery that only selects the configured columns and rows, instead of a
+ * "query", so Spark can still push the projections and filters of the downstream query into the generated
+ * SQL. A statistics query sizes the read: one partition per rowsPerPartition rows, up to maxPartitions
+ * parallel connections. Split ranges come from MIN/MAX of a numeric partition column when one is set, or
+ * else from ORA_HASH(ROWID), which splits any table evenly. Rows are fetched fetchSize at a time instead
+ * of the Oracle driver's default of 10.
+ */
+public class AdwTableReader {
+
+	private static final Logger log = LogManager.getLogger(AdwTableReader.class);
+
+	public static final String SPLIT_COLUMN = "SPLIT_ID";
+
+	private final SparkSession spark;
+	private final String format;
+	private final Map<String, String> connectionOptions;
+	private List<String> columns = Collections.emptyList();
+	private String filter;
+	private String partitionColumn;
+	private int maxPartitions = 8;
+	private long rowsPerPartition = 100000;
+	private int fetchSize = 5000;
+
+	/*
+	 * connectionOptions are the url/user/password (jdbc) or walletUri/connectionId/user/password (oracle)
+	 * options, without query or dbtable.
+	 */
+	public AdwTableReader(SparkSession spark, String format, Map<String, String> connectionOptions) {
+		this.spark = spark;
+		this.format = format;
+		this.connectionOptions = new HashMap<>(connectionOptions);
+	}
+
+	/*
+	 * Columns to read, all of them when empty.
+	 */
+	public AdwTableReader withColumns(List<String> columns) {
+		this.columns = columns;
+		return this;
+	}
+
+	/*
+	 * SQL condition on the table columns, e.g. "area > 0". May be null.
+	 */
+	public AdwTableReader withFilter(String filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/*
+	 * Numeric column to split the reads on. When null, the reads are split on ORA_HASH(ROWID).
+	 */
+	public AdwTableReader withPartitionColumn(String partitionColumn) {
+		this.partitionColumn = partitionColumn;
+		return this;
+	}
+
+	public AdwTableReader withMaxPartitions(int maxPartitions) {
+		this.maxPartitions = Math.max(1, maxPartitions);
+		return this;
+	}
+
+	public AdwTableReader withRowsPerPartition(long rowsPerPartition) {
+		this.rowsPerPartition = Math.max(1, rowsPerPartition);
+		return this;
+	}
+
+	public AdwTableReader withFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	public Dataset<Row> load(String table) {
+		String from = table + " t" + (filter == null ? "" : " WHERE " + filter);
+
+		String stats = "SELECT COUNT(*) AS ROW_COUNT";
+		if (partitionColumn != null) {
+			stats += ", MIN(t." + partitionColumn + ") AS LO, MAX(t." + partitionColumn + ") AS HI";
+		}
+		Row row = read(Collections.singletonMap("query", stats + " FROM " + from)).first();
+		long rows = ((Number) row.get(0)).longValue();
+		int partitions = (int) Math.max(1, Math.min(maxPartitions, (rows + rowsPerPartition - 1) / rowsPerPartition));
+
+		Map<String, String> options = new HashMap<>();
+		options.put("fetchsize", String.valueOf(fetchSize));
+		List<String> projection = new ArrayList<>();
+		if (columns.isEmpty()) {
+			projection.add("t.*");
+		} else {
+			for (String column : columns) {
+				projection.add("t." + column);
+			}
+		}
+		String dropColumn = null;
+
+		if (partitions > 1 && partitionColumn != null && !row.isNullAt(1)) {
+			long lo = ((BigDecimal) row.get(1)).setScale(0, RoundingMode.FLOOR).longValue();
+			long hi = ((BigDecimal) row.get(2)).setScale(0, RoundingMode.CEILING).longValue();
+			if (!columns.isEmpty() && !containsIgnoreCase(columns, partitionColumn)) {
+				projection.add("t." + partitionColumn);
+				dropColumn = partitionColumn;
+			}
+			options.put("partitionColumn", partitionColumn);
+			options.put("lowerBound", String.valueOf(lo));
+			options.put("upperBound", String.valueOf(hi + 1));
+			options.put("numPartitions", String.valueOf(partitions));
+		} else if (partitions > 1) {
+			projection.add("ORA_HASH(t.ROWID, " + (partitions - 1) + ") AS " + SPLIT_COLUMN);
+			dropColumn = SPLIT_COLUMN;
+			options.put("partitionColumn", SPLIT_COLUMN);
+			options.put("lowerBound", "0");
+			options.put("upperBound", String.valueOf(partitions));
+			options.put("numPartitions", String.valueOf(partitions));
+		}
+		options.put("dbtable", "(SELECT " + String.join(", ", projection) + " FROM " + from + ") s");
+
+		log.info("Reading " + rows + " rows of " + table + " with " + partitions + " connection(s)"
+				+ (partitions > 1 ? ", split on " + options.get("partitionColumn") : ""));
+		Dataset<Row> result = read(options);
+		return dropColumn == null ? result : result.drop(dropColumn);
+	}
+
+	private Dataset<Row> read(Map<String, String> options) {
+		return spark.read().format(format).options(connectionOptions).options(options).load();
+	}
+
+	private static boolean containsIgnoreCase(List<String> list, String value) {
+		for (String item : list) {
+			if (item.equalsIgnoreCase(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
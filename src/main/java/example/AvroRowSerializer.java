@@ -0,0 +1,168 @@
+package example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+/*
+ * Encodes flat rows as Avro binary records (no container file header), one "value" column per row, plus a
+ * "key" column with the string form of a key column if one is set.
+ *
+ * The Avro schema is derived from the row schema: every field is a union with null, timestamps are
+ * timestamp-millis longs, dates are date ints and decimals are strings. getSchema() returns it for the
+ * consumers. Uses the Avro library that Spark already ships, not spark-avro.
+ */
+public class AvroRowSerializer implements MapPartitionsFunction<Row, Row> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final StructType rowSchema;
+	// Avro schemas are not serializable before 1.9, the JSON form is shipped instead.
+	private final String schemaJson;
+	private int keyIndex = -1;
+
+	public AvroRowSerializer(StructType rowSchema, String recordName, String namespace) {
+		this.rowSchema = rowSchema;
+		this.schemaJson = schemaOf(rowSchema, recordName, namespace).toString();
+	}
+
+	public AvroRowSerializer withKey(String keyColumn) {
+		this.keyIndex = keyColumn == null ? -1 : DimensionCache.indexOf(rowSchema, keyColumn);
+		return this;
+	}
+
+	public Schema getSchema() {
+		return new Schema.Parser().parse(schemaJson);
+	}
+
+	public Dataset<Row> serialize(Dataset<Row> rows) {
+		StructType output = keyIndex < 0 ? new StructType() : new StructType().add("key", DataTypes.StringType);
+		return rows.mapPartitions(this, RowEncoder.apply(output.add("value", DataTypes.BinaryType)));
+	}
+
+	public static Schema schemaOf(StructType rowSchema, String recordName, String namespace) {
+		SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record(recordName).namespace(namespace).fields();
+		for (StructField field : rowSchema.fields()) {
+			Schema type = avroType(field.dataType());
+			fields = fields.name(avroName(field.name())).type(Schema.createUnion(Schema.create(Schema.Type.NULL), type))
+					.withDefault(null);
+		}
+		return fields.endRecord();
+	}
+
+	@Override
+	public Iterator<Row> call(Iterator<Row> input) {
+		final Schema schema = getSchema();
+		final GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema);
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		final StructField[] fields = rowSchema.fields();
+
+		return new Iterator<Row>() {
+			private BinaryEncoder encoder;
+
+			@Override
+			public boolean hasNext() {
+				return input.hasNext();
+			}
+
+			@Override
+			public Row next() {
+				if (!input.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Row row = input.next();
+				GenericRecord record = new GenericData.Record(schema);
+				for (int i = 0; i < fields.length; i++) {
+					record.put(i, row.isNullAt(i) ? null : avroValue(row.get(i), fields[i].dataType()));
+				}
+				buffer.reset();
+				encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+				try {
+					writer.write(record, encoder);
+					encoder.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (keyIndex < 0) {
+					return RowFactory.create((Object) buffer.toByteArray());
+				}
+				return RowFactory.create(row.isNullAt(keyIndex) ? null : String.valueOf(row.get(keyIndex)),
+						buffer.toByteArray());
+			}
+		};
+	}
+
+	private static Schema avroType(DataType type) {
+		if (type.equals(DataTypes.StringType)) {
+			return Schema.create(Schema.Type.STRING);
+		} else if (type.equals(DataTypes.IntegerType) || type.equals(DataTypes.ShortType)
+				|| type.equals(DataTypes.ByteType)) {
+			return Schema.create(Schema.Type.INT);
+		} else if (type.equals(DataTypes.LongType)) {
+			return Schema.create(Schema.Type.LONG);
+		} else if (type.equals(DataTypes.DoubleType)) {
+			return Schema.create(Schema.Type.DOUBLE);
+		} else if (type.equals(DataTypes.FloatType)) {
+			return Schema.create(Schema.Type.FLOAT);
+		} else if (type.equals(DataTypes.BooleanType)) {
+			return Schema.create(Schema.Type.BOOLEAN);
+		} else if (type.equals(DataTypes.BinaryType)) {
+			return Schema.create(Schema.Type.BYTES);
+		} else if (type.equals(DataTypes.TimestampType)) {
+			return LogicalTypes.timestampMillis().addToSchema(Schema.create(Schema.Type.LONG));
+		} else if (type.equals(DataTypes.DateType)) {
+			return LogicalTypes.date().addToSchema(Schema.create(Schema.Type.INT));
+		}
+		// Decimals and anything else are written as their string form.
+		return Schema.create(Schema.Type.STRING);
+	}
+
+	private static Object avroValue(Object value, DataType type) {
+		if (value instanceof Timestamp) {
+			return ((Timestamp) value).getTime();
+		} else if (value instanceof Date) {
+			return (int) ((Date) value).toLocalDate().toEpochDay();
+		} else if (value instanceof Short || value instanceof Byte) {
+			return ((Number) value).intValue();
+		} else if (value instanceof byte[]) {
+			return ByteBuffer.wrap((byte[]) value);
+		} else if (value instanceof BigDecimal) {
+			return ((BigDecimal) value).toPlainString();
+		} else if (avroType(type).getType() == Schema.Type.STRING) {
+			return value.toString();
+		}
+		return value;
+	}
+
+	/*
+	 * Avro names are [A-Za-z_][A-Za-z0-9_]*, e.g. "Organization Id" becomes Organization_Id.
+	 */
+	static String avroName(String name) {
+		String result = name.replaceAll("[^A-Za-z0-9_]", "_");
+		return Character.isDigit(result.charAt(0)) ? "_" + result : result;
+	}
+}
@@ -0,0 +1,73 @@
+package example;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaCompatibility;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+/*
+ * Decodes Kafka values that are single Avro binary records (no container file header and no schema
+ * registry prefix), written with a schema read from a file.
+ *
+ * The projection schema is turned into an Avro reader schema (see AvroRowSerializer.schemaOf), and Avro's
+ * schema resolution maps the writer schema onto it: fields that are not projected are skipped without
+ * being materialized, fields the writer does not have are null, and numeric types are promoted. Field names
+ * are matched after replacing the characters Avro does not allow with "_", e.g. Organization_Id. A writer
+ * schema that can not be resolved fails at startup, not on the first record.
+ */
+public class AvroValueDecoder extends ValueDecoder {
+
+	private static final long serialVersionUID = 1L;
+
+	// Avro schemas are not serializable before 1.9, the JSON forms are shipped instead.
+	private final String writerSchemaJson;
+	private final String readerSchemaJson;
+
+	public AvroValueDecoder(StructType schema, String writerSchema) {
+		super(schema);
+		Schema writer = new Schema.Parser().parse(writerSchema);
+		if (writer.getType() != Schema.Type.RECORD) {
+			throw new IllegalArgumentException("Avro schema must be a record, not " + writer.getType());
+		}
+		Schema reader = AvroRowSerializer.schemaOf(schema, writer.getName(), writer.getNamespace());
+		SchemaCompatibility.SchemaPairCompatibility compatibility =
+				SchemaCompatibility.checkReaderWriterCompatibility(reader, writer);
+		if (compatibility.getType() != SchemaCompatibility.SchemaCompatibilityType.COMPATIBLE) {
+			throw new IllegalArgumentException("Avro schema " + writer.getFullName() + " does not match "
+					+ schema.simpleString() + ": " + compatibility.getDescription());
+		}
+		this.writerSchemaJson = writer.toString();
+		this.readerSchemaJson = reader.toString();
+	}
+
+	@Override
+	protected RecordDecoder newRecordDecoder() {
+		Schema writer = new Schema.Parser().parse(writerSchemaJson);
+		Schema reader = new Schema.Parser().parse(readerSchemaJson);
+		final GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(writer, reader);
+		final StructField[] fields = schema.fields();
+
+		return new RecordDecoder() {
+			private BinaryDecoder decoder;
+			private GenericRecord record;
+
+			@Override
+			public void decode(byte[] value, Object[] values) throws IOException {
+				decoder = DecoderFactory.get().binaryDecoder(value, decoder);
+				record = datumReader.read(record, decoder);
+				if (!decoder.isEnd()) {
+					throw new IOException("Trailing bytes after the Avro record");
+				}
+				for (int i = 0; i < fields.length; i++) {
+					values[i] = convert(record.get(i), fields[i].dataType());
+				}
+			}
+		};
+	}
+}
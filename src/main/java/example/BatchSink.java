@@ -0,0 +1,20 @@
+package example;
+
+import java.io.Serializable;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+/*
+ * Destination for one micro-batch, used by FanOutSink.
+ *
+ * write() runs on the driver for every micro-batch and receives a persisted Dataset, so it can run as many
+ * Spark actions on it as it needs. Implementations should tolerate a batchId being written again when a
+ * failed micro-batch is retried.
+ */
+public interface BatchSink extends Serializable {
+
+	String getName();
+
+	void write(Dataset<Row> batch, long batchId) throws Exception;
+}
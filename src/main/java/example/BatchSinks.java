@@ -0,0 +1,66 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Creates the sinks listed in the pipeline configuration.
+ *
+ * <prefix>.types is a comma separated list of sink types; the settings of each type are read from
+ * <prefix>.<type>.*, e.g. sink.types=console,csv with sink.csv.path=oci://data@namespace/.
+ * secrets is only needed by the adw sink, which reads its password from adw.passwordSecretOcid, and may be
+ * null otherwise. The kafka sink connects with the kafka.* settings of the source unless it has its own
+ * bootstrap.servers.
+ */
+public class BatchSinks {
+
+	public static List<BatchSink> fromConfig(PipelineConfig config, String prefix, CachingSecretProvider secrets) {
+		List<BatchSink> sinks = new ArrayList<>();
+		for (String type : config.getList(prefix + ".types")) {
+			sinks.add(create(config, prefix, type, secrets));
+		}
+		return sinks;
+	}
+
+	/*
+	 * True if <prefix>.types lists the given sink type.
+	 */
+	public static boolean uses(PipelineConfig config, String prefix, String type) {
+		return config.getList(prefix + ".types").contains(type);
+	}
+
+	private static BatchSink create(PipelineConfig config, String prefix, String type, CachingSecretProvider secrets) {
+		String keys = prefix + "." + type + ".";
+		String name = prefix + "." + type;
+		switch (type) {
+			case "console":
+				return new ConsoleBatchSink(name, config.getInt(keys + "numRows", 20));
+			case "csv":
+			case "json":
+			case "parquet":
+			case "orc":
+				return new FileBatchSink(name, type, config.get(keys + "path"), config.getSubset(keys + "option."))
+						.withPartitioning(config.getList(keys + "partitionBy"))
+						.withTargetFileBytes(config.getLong(keys + "targetFileMB", 0) * 1024 * 1024)
+						.withCompaction(config.getLong(keys + "compaction.intervalSeconds", 0),
+								config.getInt(keys + "compaction.minFiles", 4));
+			case "adw":
+				return new AdwBatchSink(name, config.get(keys + "table"), config.get(keys + "keyColumn"),
+						config.get("adw.tnsName"), config.get(keys + "user", config.get("adw.user")), secrets,
+						config.get(keys + "passwordSecretOcid", config.get("adw.passwordSecretOcid")),
+						config.getInt(keys + "batchSize", 1000), config.getInt(keys + "maxWriters", 4),
+						config.getInt(keys + "poolSize", 2));
+			case "kafka":
+				Map<String, String> connection = KafkaConnection.options(config);
+				if (config.has(keys + "bootstrap.servers")) {
+					connection.put("kafka.bootstrap.servers", config.get(keys + "bootstrap.servers"));
+				}
+				return new KafkaBatchSink(name, config.get(keys + "topic"), connection, config.get(keys + "format", "json"))
+						.withKeyColumn(config.get(keys + "keyColumn", null))
+						.withProducerOptions(config.getSubset(keys + "option."));
+			default:
+				throw new IllegalArgumentException("Unknown sink type " + type + " in " + prefix + ".types");
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/*
+ * Runs the startup steps of a driver concurrently, following their dependencies.
+ *
+ * Every step names the steps it needs and starts as soon as they all completed, on a thread of its own, so
+ * independent network round trips (Spark session, Vault, wallet download, ADW read) overlap instead of
+ * adding up. A step whose dependency failed fails with the same exception without running. Start offset
+ * and duration of every step are recorded and logged, see report().
+ */
+public class Bootstrap {
+
+	private static final Logger log = LogManager.getLogger(Bootstrap.class);
+
+	public interface Task<T> {
+		T call() throws Exception;
+	}
+
+	private static final class Timing {
+		final String name;
+		volatile long startedAt = -1;
+		volatile long durationMs = -1;
+		volatile Throwable error;
+
+		Timing(String name) {
+			this.name = name;
+		}
+	}
+
+	private final long createdAt = System.currentTimeMillis();
+	private final ExecutorService executor;
+	private final Map<String, Timing> timings = new LinkedHashMap<>();
+	private final List<CompletableFuture<?>> steps = new ArrayList<>();
+
+	public Bootstrap() {
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "bootstrap");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*
+	 * Runs task once all dependencies completed; the future completes with its result.
+	 */
+	public <T> CompletableFuture<T> step(String name, Task<T> task, CompletableFuture<?>... dependencies) {
+		Timing timing = new Timing(name);
+		synchronized (timings) {
+			if (timings.containsKey(name)) {
+				throw new IllegalArgumentException("Duplicate bootstrap step " + name);
+			}
+			timings.put(name, timing);
+		}
+		CompletableFuture<T> step = CompletableFuture.allOf(dependencies).thenApplyAsync(ignored -> {
+			timing.startedAt = System.currentTimeMillis() - createdAt;
+			long start = System.currentTimeMillis();
+			try {
+				T result = task.call();
+				timing.durationMs = System.currentTimeMillis() - start;
+				log.info("Bootstrap step " + name + " done in " + timing.durationMs + " ms");
+				return result;
+			} catch (Exception e) {
+				timing.durationMs = System.currentTimeMillis() - start;
+				timing.error = e;
+				log.error("Bootstrap step " + name + " failed after " + timing.durationMs + " ms", e);
+				throw new CompletionException(e);
+			}
+		}, executor);
+		synchronized (timings) {
+			steps.add(step);
+		}
+		return step;
+	}
+
+	/*
+	 * Waits for a step and returns its result, or throws the exception of the step (or of the dependency
+	 * that prevented it from running).
+	 */
+	public static <T> T await(CompletableFuture<T> step) throws Exception {
+		try {
+			return step.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/*
+	 * Completes when every step defined so far completed, successfully or not.
+	 */
+	public CompletableFuture<Void> all() {
+		CompletableFuture<?>[] defined;
+		synchronized (timings) {
+			defined = steps.toArray(new CompletableFuture<?>[0]);
+		}
+		CompletableFuture<?>[] settled = new CompletableFuture<?>[defined.length];
+		for (int i = 0; i < defined.length; i++) {
+			settled[i] = defined[i].handle((result, e) -> null);
+		}
+		return CompletableFuture.allOf(settled);
+	}
+
+	/*
+	 * Duration of every step that ran, in milliseconds, in the order the steps were defined.
+	 */
+	public Map<String, Long> getDurations() {
+		Map<String, Long> durations = new LinkedHashMap<>();
+		for (Timing timing : timings()) {
+			if (timing.durationMs >= 0) {
+				durations.put(timing.name, timing.durationMs);
+			}
+		}
+		return durations;
+	}
+
+	public long getElapsedMs() {
+		return System.currentTimeMillis() - createdAt;
+	}
+
+	/*
+	 * One line per step: start offset from the creation of the bootstrap, duration and outcome.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder("Bootstrap after " + getElapsedMs() + " ms:");
+		for (Timing timing : timings()) {
+			sb.append("\n  ").append(timing.name);
+			if (timing.startedAt < 0) {
+				sb.append(": not started");
+			} else if (timing.durationMs < 0) {
+				sb.append(": started at +").append(timing.startedAt).append(" ms, running");
+			} else {
+				sb.append(": +").append(timing.startedAt).append(" ms, ").append(timing.durationMs).append(" ms")
+						.append(timing.error == null ? "" : ", failed: " + timing.error);
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Steps already running complete; nothing new is started.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private List<Timing> timings() {
+		synchronized (timings) {
+			return new ArrayList<>(timings.values());
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+
+/*
+ * In-memory TTL cache in front of another SecretProvider, usually a VaultSecretProvider.
+ *
+ * A secret is fetched once and then served from memory. Once it is older than ttl - refreshAhead a single
+ * background refresh is started while callers keep getting the cached value, so a warm secret never waits
+ * for Vault. If a refresh fails the last good value is served, also past its TTL, and the next call retries.
+ *
+ * Only the driver talks to Vault: executors get secrets through broadcast(), which ships the value once per
+ * executor and is replaced when the secret is rotated.
+ */
+public class CachingSecretProvider implements SecretProvider {
+
+	private static final Logger log = LogManager.getLogger(CachingSecretProvider.class);
+
+	private final SecretProvider delegate;
+	private final long ttlMillis;
+	private final long refreshAheadMillis;
+	private final ExecutorService refresher;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+	private final Map<String, Broadcast<String>> broadcasts = new ConcurrentHashMap<>();
+
+	private static final class Entry {
+		final byte[] value;
+		final long fetchedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(byte[] value, long fetchedAt) {
+			this.value = value;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	public CachingSecretProvider(SecretProvider delegate, long ttlSeconds, long refreshAheadSeconds) {
+		this.delegate = delegate;
+		this.ttlMillis = ttlSeconds * 1000;
+		this.refreshAheadMillis = Math.min(refreshAheadSeconds * 1000, ttlMillis);
+		this.refresher = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "secret-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public byte[] getSecret(String secretOcid) {
+		Entry entry = entries.get(secretOcid);
+		if (entry == null) {
+			return fetch(secretOcid, null).value;
+		}
+		long age = System.currentTimeMillis() - entry.fetchedAt;
+		if (age >= ttlMillis - refreshAheadMillis && entry.refreshing.compareAndSet(false, true)) {
+			if (age >= ttlMillis) {
+				// Expired and no refresh running, e.g. the last one failed: refresh inline.
+				return fetch(secretOcid, entry).value;
+			}
+			refresher.execute(() -> fetch(secretOcid, entry));
+		}
+		return entry.value;
+	}
+
+	public String getSecretString(String secretOcid) {
+		return new String(getSecret(secretOcid), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Fetch all the secrets in parallel, e.g. at startup. Fails if any of them can not be read.
+	 */
+	public void prefetch(Collection<String> secretOcids) throws InterruptedException, ExecutionException {
+		List<Future<byte[]>> pending = new ArrayList<>();
+		for (String secretOcid : secretOcids) {
+			pending.add(refresher.submit(() -> getSecret(secretOcid)));
+		}
+		for (Future<byte[]> future : pending) {
+			future.get();
+		}
+	}
+
+	/*
+	 * Broadcast of the current value of a secret. The same broadcast is returned while the value does not
+	 * change; call it again for every job (e.g. every micro-batch) to pick up rotated secrets.
+	 */
+	public Broadcast<String> broadcast(SparkContext sc, String secretOcid) {
+		String value = getSecretString(secretOcid);
+		synchronized (broadcasts) {
+			Broadcast<String> current = broadcasts.get(secretOcid);
+			if (current == null || !current.value().equals(value)) {
+				if (current != null) {
+					current.unpersist(false);
+				}
+				current = JavaSparkContext.fromSparkContext(sc).broadcast(value);
+				broadcasts.put(secretOcid, current);
+			}
+			return current;
+		}
+	}
+
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	/*
+	 * Read the secret from the delegate, unless another thread replaced stale in the meantime. When the
+	 * delegate fails and a previous value exists, that value is kept and served.
+	 */
+	private Entry fetch(String secretOcid, Entry stale) {
+		synchronized (locks.computeIfAbsent(secretOcid, k -> new Object())) {
+			Entry current = entries.get(secretOcid);
+			if (current != null && current != stale) {
+				return current;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				Entry fresh = new Entry(delegate.getSecret(secretOcid), System.currentTimeMillis());
+				entries.put(secretOcid, fresh);
+				log.info("Fetched secret " + secretOcid + " in " + (fresh.fetchedAt - start) + " ms");
+				return fresh;
+			} catch (RuntimeException e) {
+				if (stale == null) {
+					throw e;
+				}
+				log.warn("Refresh of secret " + secretOcid + " failed, serving the value fetched at "
+						+ stale.fetchedAt, e);
+				stale.refreshing.set(false);
+				return stale;
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package example;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.streaming.DataStreamWriter;
+
+/*
+ * Prints the first rows of every micro-batch, like the "console" streaming sink.
+ */
+public class ConsoleBatchSink implements ContinuousSink {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final int numRows;
+
+	public ConsoleBatchSink(String name, int numRows) {
+		this.name = name;
+		this.numRows = numRows;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void write(Dataset<Row> batch, long batchId) {
+		System.out.println("-------------------------------------------");
+		System.out.println(name + " - Batch: " + batchId);
+		System.out.println("-------------------------------------------");
+		batch.show(numRows, false);
+	}
+
+	@Override
+	public DataStreamWriter<Row> writeStream(Dataset<Row> rows) {
+		return rows.writeStream()
+				.format("console")
+				.option("numRows", numRows)
+				.option("truncate", false);
+	}
+}
@@ -0,0 +1,201 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.api.java.UDF0;
+import org.apache.spark.sql.catalyst.analysis.UnsupportedOperationChecker$;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.streaming.OutputMode;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.Trigger;
+import org.apache.spark.sql.types.DataTypes;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.udf;
+
+/*
+ * Runs the map-only path (Kafka -> decode -> broadcast lookup -> enrich.query -> sink) with Spark's
+ * continuous processing trigger instead of micro-batches, for latencies in milliseconds.
+ *
+ * Continuous queries only support projections and selections, no aggregation, deduplication or join, and
+ * no foreachBatch: every route gets one query per sink, each writing through ContinuousSink.writeStream()
+ * and reading the topic on its own. validate() lists what keeps the configured pipeline out of that subset
+ * (stateful stages, a join, sinks without a continuous writer, operators of the plan), so the caller can
+ * fall back to micro-batches. checkConfig() covers the settings that never reach the plan.
+ *
+ * Continuous tasks never end: every query keeps one core per input partition busy, and anything broadcast
+ * when the query starts stays in use until it is restarted (see awaitTermination()).
+ *
+ * Every output row gets latencyColumn: milliseconds from the Kafka record timestamp (eventTimeColumn) to
+ * the moment the row is handed to the sink, when the route output still has that column.
+ */
+public class ContinuousPipeline {
+
+	private static final Logger log = LogManager.getLogger(ContinuousPipeline.class);
+
+	private static final UserDefinedFunction NOW_MS =
+			udf((UDF0<Long>) System::currentTimeMillis, DataTypes.LongType).asNondeterministic();
+
+	private static final class Route {
+		final FanOutSink.Stage stage;
+		final BatchSink sink;
+		final String name;
+
+		Route(FanOutSink.Stage stage, BatchSink sink, int index) {
+			this.stage = stage;
+			this.sink = sink;
+			// The same sink type may serve several routes, e.g. console for the output and the malformed records.
+			this.name = sink.getName() + "-" + index;
+		}
+	}
+
+	private final String checkpointLocation;
+	private final String checkpointInterval;
+	private final List<Route> routes = new ArrayList<>();
+	private String eventTimeColumn;
+	private String latencyColumn;
+	private int routeCount;
+
+	/*
+	 * Each query is named <sink name>-<route number> and checkpoints to checkpointLocation/<query name>;
+	 * checkpointInterval is the interval of the
+	 * continuous trigger, e.g. "1 second".
+	 */
+	public ContinuousPipeline(String checkpointLocation, String checkpointInterval) {
+		this.checkpointLocation = checkpointLocation.endsWith("/") ? checkpointLocation : checkpointLocation + "/";
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public ContinuousPipeline withLatency(String eventTimeColumn, String latencyColumn) {
+		this.eventTimeColumn = eventTimeColumn;
+		this.latencyColumn = latencyColumn;
+		return this;
+	}
+
+	public ContinuousPipeline route(FanOutSink.Stage stage, List<BatchSink> sinks) {
+		int index = routeCount++;
+		for (BatchSink sink : sinks) {
+			routes.add(new Route(stage, sink, index));
+		}
+		return this;
+	}
+
+	/*
+	 * Settings that rule out continuous processing whatever the plan: stateful stages, the per batch join
+	 * and the adaptive rate.
+	 */
+	public static List<String> checkConfig(PipelineConfig config) {
+		List<String> problems = new ArrayList<>();
+		if (config.has("dedup.key")) {
+			problems.add("dedup.key: deduplication keeps state per key, empty it");
+		}
+		if ("join".equals(config.get("enrich.mode", "broadcast"))) {
+			problems.add("enrich.mode=join: stream-table joins are not supported, use enrich.mode=broadcast");
+		}
+		if (config.getBoolean("rate.adaptive", false)) {
+			problems.add("rate.adaptive: continuous queries have no micro-batches to size");
+		}
+		return problems;
+	}
+
+	/*
+	 * Why the routes can not run continuously over input (the decoded stream), empty if they can.
+	 */
+	public List<String> validate(Dataset<Row> input) {
+		List<String> problems = new ArrayList<>();
+		if (routes.isEmpty()) {
+			problems.add("no sinks to write to");
+		}
+		for (Route route : routes) {
+			if (!(route.sink instanceof ContinuousSink)) {
+				problems.add(route.name + ": only kafka and console sinks can be written continuously");
+				continue;
+			}
+			try {
+				UnsupportedOperationChecker$.MODULE$.checkForContinuous(
+						route.stage.apply(input).queryExecution().analyzed(), OutputMode.Append());
+			} catch (Exception e) {
+				// AnalysisException, not declared by the Scala checker; its message ends with the whole plan
+				problems.add(route.name + ": " + e.getMessage().split("\n")[0]);
+			}
+		}
+		return problems;
+	}
+
+	/*
+	 * Starts one continuous query per sink over input.
+	 */
+	public List<StreamingQuery> start(Dataset<Row> input) throws Exception {
+		List<StreamingQuery> queries = new ArrayList<>();
+		try {
+			for (Route route : routes) {
+				Dataset<Row> output = withLatency(route.stage.apply(input), route.name);
+				queries.add(((ContinuousSink) route.sink).writeStream(output)
+						.queryName(route.name)
+						.option("checkpointLocation", checkpointLocation + route.name)
+						.trigger(Trigger.Continuous(checkpointInterval))
+						.start());
+			}
+		} catch (Exception e) {
+			stop(queries);
+			throw e;
+		}
+		log.info("Started " + queries.size() + " continuous queries, checkpoint interval " + checkpointInterval);
+		return queries;
+	}
+
+	/*
+	 * Waits for any of the queries to terminate, or stops them all when version changes (e.g. the
+	 * DimensionCache.getLoadedAt() of a broadcast captured by the running tasks). Returns true in the latter
+	 * case: start them again to pick up the new version. A failed query stops the others and is rethrown.
+	 */
+	public static boolean awaitTermination(List<StreamingQuery> queries, LongSupplier version) throws Exception {
+		long started = version.getAsLong();
+		while (true) {
+			for (StreamingQuery query : queries) {
+				if (!query.isActive()) {
+					stop(queries);
+					query.awaitTermination();
+					return false;
+				}
+			}
+			if (version.getAsLong() != started) {
+				log.info("New version " + version.getAsLong() + ", restarting the continuous queries");
+				stop(queries);
+				return true;
+			}
+			Thread.sleep(1000);
+		}
+	}
+
+	private Dataset<Row> withLatency(Dataset<Row> output, String sink) {
+		if (latencyColumn == null) {
+			return output;
+		}
+		for (String column : output.columns()) {
+			if (column.equalsIgnoreCase(eventTimeColumn)) {
+				Column eventTimeMs = col(column).cast("double").multiply(1000).cast("long");
+				return output.withColumn(latencyColumn, NOW_MS.apply().minus(eventTimeMs));
+			}
+		}
+		log.warn(sink + ": no " + latencyColumn + ", the output has no " + eventTimeColumn + " column");
+		return output;
+	}
+
+	private static void stop(List<StreamingQuery> queries) {
+		for (StreamingQuery query : queries) {
+			try {
+				query.stop();
+			} catch (Exception e) {
+				log.warn("Failed to stop query " + query.name(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package example;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.streaming.DataStreamWriter;
+
+/*
+ * A sink that can also be written by a continuous processing query, see ContinuousPipeline.
+ *
+ * Continuous queries can not use foreachBatch: writeStream() returns the writer of a streaming sink that
+ * supports the continuous trigger (kafka, console), without trigger and checkpoint.
+ */
+public interface ContinuousSink extends BatchSink {
+
+	DataStreamWriter<Row> writeStream(Dataset<Row> rows);
+}
@@ -9,9 +9,10 @@ import org.apache.hadoop.conf.Configuration;
 import com.oracle.bmc.hdfs.BmcFilesystem;
 
 public class DataFlowBmcFilesystemClient {
+	/*
+	 * Returns the filesystem shared through OciClientRegistry, do not close it.
+	 */
 	public static BmcFilesystem getBmcFilesystemClient(String path, Configuration config) throws IOException, URISyntaxException {
-		BmcFilesystem bmcFS = new BmcFilesystem();
-		bmcFS.initialize(new URI(path), config);
-		return bmcFS;
+		return OciClientRegistry.getFilesystem(new URI(path), config);
 	}
 }
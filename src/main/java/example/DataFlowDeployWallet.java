@@ -7,6 +7,8 @@ package example;
 import com.oracle.bmc.hdfs.BmcFilesystem;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.spark.SparkContext;
 
@@ -15,10 +17,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -26,67 +35,152 @@ import java.util.zip.ZipInputStream;
  * Helper to deploy a wallet to the Spark cluster.
  *
  * This only needs to be done once and should be done in the Spark driver.
+ *
+ * The wallet is extracted straight from the object storage stream, without an intermediate wallet.zip, into
+ * a directory named after the object's checksum (or size and modification time when the store reports no
+ * checksum). Restarts find that directory already extracted and skip the download. Files are only shipped
+ * with addFile when their content differs from what was already shipped to the SparkContext.
  */
 public class DataFlowDeployWallet {
 
-	private static final int BUFFER_SIZE = 4096;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String COMPLETE_MARKER = ".complete";
+
+	private static final List<String> WALLET_CONTENTS = Arrays.asList("cwallet.sso", "ewallet.p12", "keystore.jks",
+			"ojdbc.properties", "sqlnet.ora", "tnsnames.ora", "truststore.jks");
+
+	// Content hash of every file shipped, per application.
+	private static final Map<String, String> shippedFiles = new ConcurrentHashMap<>();
 
 	public static String deployWallet(URI oci_uri, SparkContext sc, Configuration configuration, String walletPath)
 			throws IOException, URISyntaxException {
-		try (final BmcFilesystem fs = new BmcFilesystem()) {
-			fs.initialize(oci_uri, configuration);
+		BmcFilesystem fs = OciClientRegistry.getFilesystem(oci_uri, configuration);
 
-			String tmpPath = downloadAndExtract(fs, new Path(walletPath));
+		String tmpPath = downloadAndExtract(fs, new Path(walletPath));
 
-			List<String> walletContents = Arrays.asList("cwallet.sso", "ewallet.p12", "keystore.jks", "ojdbc.properties",
-					"sqlnet.ora", "tnsnames.ora", "truststore.jks");
-			for (String file : walletContents) {
-				sc.addFile(tmpPath + file);
+		for (String file : WALLET_CONTENTS) {
+			File local = new File(tmpPath, file);
+			if (!local.exists()) {
+				continue;
+			}
+			String shippedKey = sc.applicationId() + "/" + file;
+			String hash = hash(local);
+			if (!hash.equals(shippedFiles.get(shippedKey))) {
+				sc.addFile(local.getAbsolutePath());
+				shippedFiles.put(shippedKey, hash);
 			}
-			return tmpPath;
 		}
+		return tmpPath;
 	}
 
 	private static String downloadAndExtract(BmcFilesystem bmc, Path walletRemotePath)
 			throws IllegalArgumentException, IOException {
-		String tmpPath = OboTokenClientConfigurator.getTempDirectory();
-		String walletLocal = tmpPath + "wallet.zip";
-		bmc.copyToLocalFile(walletRemotePath, new Path(walletLocal));
-		unzip(walletLocal, tmpPath);
-		return tmpPath;
+		FileStatus status = bmc.getFileStatus(walletRemotePath);
+		FileChecksum checksum = bmc.getFileChecksum(walletRemotePath);
+		String version = checksum != null ? checksum.toString()
+				: status.getLen() + "-" + status.getModificationTime();
+		String key = hash(walletRemotePath + "@" + version);
+
+		File cached = new File(OboTokenClientConfigurator.getTempDirectory(), "wallet-" + key);
+		if (new File(cached, COMPLETE_MARKER).exists()) {
+			return cached.getAbsolutePath() + File.separator;
+		}
+
+		// Extract next to the final location and rename, so a crash never leaves a half extracted cache entry.
+		File staging = new File(cached.getParentFile(), cached.getName() + ".tmp-" + System.nanoTime());
+		try (InputStream in = bmc.open(walletRemotePath, BUFFER_SIZE)) {
+			unzip(in, staging.getAbsolutePath());
+		}
+		if (!new File(staging, COMPLETE_MARKER).createNewFile() || !staging.renameTo(cached)) {
+			// Another session extracted the same wallet concurrently, use its copy.
+			deleteRecursively(staging);
+		}
+		return cached.getAbsolutePath() + File.separator;
+	}
+
+	public static void unzip(String zipFilePath, String destDirectory) throws IOException {
+		try (InputStream in = new FileInputStream(zipFilePath)) {
+			unzip(in, destDirectory);
+		}
 	}
 
-	private static void unzip(String zipFilePath, String destDirectory) throws IOException {
+	public static void unzip(InputStream in, String destDirectory) throws IOException {
 		File destDir = new File(destDirectory);
 		if (!destDir.exists()) {
-			destDir.mkdir();
+			destDir.mkdirs();
 		}
-		ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFilePath));
+		String canonicalDest = destDir.getCanonicalPath() + File.separator;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ZipInputStream zipIn = new ZipInputStream(in);
 		ZipEntry entry = zipIn.getNextEntry();
 		// iterates over entries in the zip file
 		while (entry != null) {
-			String filePath = destDirectory + File.separator + entry.getName();
+			File file = new File(destDir, entry.getName());
+			if (!file.getCanonicalPath().startsWith(canonicalDest)) {
+				throw new IOException("Zip entry outside of the target directory: " + entry.getName());
+			}
 			if (!entry.isDirectory()) {
 				// if the entry is a file, extracts it
-				extractFile(zipIn, filePath);
+				file.getParentFile().mkdirs();
+				extractFile(zipIn, file, buffer);
 			} else {
 				// if the entry is a directory, make the directory
-				File dir = new File(filePath);
-				dir.mkdir();
+				file.mkdirs();
 			}
 			zipIn.closeEntry();
 			entry = zipIn.getNextEntry();
 		}
-		zipIn.close();
 	}
 
-	private static void extractFile(ZipInputStream zipIn, String filePath) throws IOException {
-		BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePath));
-		byte[] bytesIn = new byte[BUFFER_SIZE];
-		int read = 0;
-		while ((read = zipIn.read(bytesIn)) != -1) {
-			bos.write(bytesIn, 0, read);
+	private static void extractFile(ZipInputStream zipIn, File file, byte[] buffer) throws IOException {
+		try (OutputStream bos = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+			int read;
+			while ((read = zipIn.read(buffer)) != -1) {
+				bos.write(buffer, 0, read);
+			}
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest = sha1();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	private static String hash(String value) {
+		return hex(sha1().digest(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
 		}
-		bos.close();
+		file.delete();
 	}
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -22,6 +23,80 @@ import com.oracle.bmc.auth.ConfigFileAuthenticationDetailsProvider;
  * If running locally, the Spark session is configured to access OCI using an API key.
  */
 public class DataFlowSparkSession {
+
+	/*
+	 * Micro-batches of a few seconds: small serializer buffers, fast lz4 compression, no locality wait, a
+	 * moderate off-heap pool.
+	 */
+	public static final String STREAMING_LOW_LATENCY = "streaming-low-latency";
+	/*
+	 * Large scans and shuffles: large serializer and shuffle buffers, zstd compression (smaller shuffle
+	 * files for more CPU), a larger off-heap pool and larger input splits.
+	 */
+	public static final String BATCH_THROUGHPUT = "batch-throughput";
+
+	private static final Map<String, Map<String, String>> PROFILES = new LinkedHashMap<>();
+
+	static {
+		// Both: Kryo with the pipeline classes registered, Tungsten execution memory off-heap (outside of
+		// the GC'd heap; the container must have room for spark.memory.offHeap.size on top of the heap).
+		Map<String, String> common = new LinkedHashMap<>();
+		common.put("spark.serializer", "org.apache.spark.serializer.KryoSerializer");
+		common.put("spark.kryo.registrator", PipelineKryoRegistrator.class.getName());
+		common.put("spark.kryo.unsafe", "true");
+		common.put("spark.memory.offHeap.enabled", "true");
+		common.put("spark.sql.codegen.wholeStage", "true");
+		common.put("spark.shuffle.compress", "true");
+		common.put("spark.shuffle.spill.compress", "true");
+
+		Map<String, String> streaming = new LinkedHashMap<>(common);
+		streaming.put("spark.kryoserializer.buffer", "64k");
+		streaming.put("spark.kryoserializer.buffer.max", "64m");
+		streaming.put("spark.memory.offHeap.size", "512m");
+		streaming.put("spark.io.compression.codec", "lz4");
+		streaming.put("spark.shuffle.file.buffer", "64k");
+		streaming.put("spark.locality.wait", "0s");
+		PROFILES.put(STREAMING_LOW_LATENCY, streaming);
+
+		Map<String, String> batch = new LinkedHashMap<>(common);
+		batch.put("spark.kryoserializer.buffer", "1m");
+		batch.put("spark.kryoserializer.buffer.max", "512m");
+		batch.put("spark.memory.offHeap.size", "2g");
+		batch.put("spark.io.compression.codec", "zstd");
+		batch.put("spark.io.compression.zstd.level", "1");
+		batch.put("spark.io.compression.zstd.bufferSize", "64k");
+		batch.put("spark.shuffle.file.buffer", "1m");
+		batch.put("spark.shuffle.unsafe.file.output.buffer", "1m");
+		batch.put("spark.shuffle.spill.diskWriteBufferSize", "1m");
+		batch.put("spark.unsafe.sorter.spill.reader.buffer.size", "1m");
+		batch.put("spark.sql.inMemoryColumnarStorage.batchSize", "20000");
+		batch.put("spark.sql.files.maxPartitionBytes", "256m");
+		PROFILES.put(BATCH_THROUGHPUT, batch);
+	}
+
+	/*
+	 * Spark settings of a performance profile, see STREAMING_LOW_LATENCY and BATCH_THROUGHPUT.
+	 */
+	public static Map<String, String> getProfile(String name) {
+		Map<String, String> profile = PROFILES.get(name);
+		if (profile == null) {
+			throw new IllegalArgumentException("Unknown session profile " + name + ", use one of " + PROFILES.keySet());
+		}
+		return new LinkedHashMap<>(profile);
+	}
+
+	/*
+	 * The settings of profile with conf on top, so any key of the profile can be overridden. No profile
+	 * when profile is null or empty.
+	 */
+	public static Map<String, String> withProfile(String profile, Map<String, String> conf) {
+		Map<String, String> merged = profile == null || profile.isEmpty() ? new LinkedHashMap<>() : getProfile(profile);
+		if (conf != null) {
+			merged.putAll(conf);
+		}
+		return merged;
+	}
+
 	public static boolean isRunningInDataFlow() {
 		if (System.getenv("HOME").equals("/home/dataflow") || System.getenv("HOME").equals("/opt/dataflow")) {
 			return true;
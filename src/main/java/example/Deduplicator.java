@@ -0,0 +1,142 @@
+package example;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.function.FlatMapGroupsFunction;
+import org.apache.spark.api.java.function.FlatMapGroupsWithStateFunction;
+import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.execution.streaming.ProcessingTimeTrigger;
+import org.apache.spark.sql.streaming.GroupState;
+import org.apache.spark.sql.streaming.GroupStateTimeout;
+import org.apache.spark.sql.streaming.OutputMode;
+import org.apache.spark.sql.streaming.Trigger;
+import org.apache.spark.util.LongAccumulator;
+
+/*
+ * Streaming stage that drops records whose key was already seen within the watermark delay.
+ *
+ * Producers resend organizations with new Kafka timestamps, so dropDuplicates() on (key, event time) would
+ * let them through, and dropDuplicates() on the key alone keeps every key in the state store forever. Here
+ * the state of a key is the event time of its first record, and it expires once the watermark (the latest
+ * event time seen minus watermarkDelay) has passed it: a resend within watermarkDelay of the original is
+ * dropped, and state only holds the keys of the last watermarkDelay.
+ *
+ * Records without a key, such as the ones that could not be decoded, are passed through.
+ */
+public class Deduplicator implements FlatMapGroupsWithStateFunction<String, Row, Long, Row> {
+
+	private static final long serialVersionUID = 1L;
+
+	// Group of the records without a key; never a valid key since it is not printable.
+	private static final String NO_KEY = "\u0000";
+
+	private final String keyColumn;
+	private final String eventTimeColumn;
+	private final String watermarkDelay;
+	private LongAccumulator duplicates;
+	private int keyIndex;
+	private int eventTimeIndex;
+
+	public Deduplicator(String keyColumn, String eventTimeColumn, String watermarkDelay) {
+		this.keyColumn = keyColumn;
+		this.eventTimeColumn = eventTimeColumn;
+		this.watermarkDelay = watermarkDelay;
+	}
+
+	/*
+	 * Count the records dropped as duplicates, e.g. PipelineMetrics.getDuplicates().
+	 */
+	public Deduplicator withDuplicateCounter(LongAccumulator duplicates) {
+		this.duplicates = duplicates;
+		return this;
+	}
+
+	public Dataset<Row> apply(Dataset<Row> stream) {
+		keyIndex = DimensionCache.indexOf(stream.schema(), keyColumn);
+		eventTimeIndex = DimensionCache.indexOf(stream.schema(), eventTimeColumn);
+		final int key = keyIndex;
+		return stream
+				.withWatermark(stream.schema().fieldNames()[eventTimeIndex], watermarkDelay)
+				.groupByKey((MapFunction<Row, String>) row -> row.isNullAt(key) ? NO_KEY : String.valueOf(row.get(key)),
+						Encoders.STRING())
+				.flatMapGroupsWithState(this, OutputMode.Append(), Encoders.LONG(), RowEncoder.apply(stream.schema()),
+						GroupStateTimeout.EventTimeTimeout());
+	}
+
+	/*
+	 * The same deduplication over a bounded Dataset, e.g. a backfill batch, which has no watermark: the
+	 * records of a key are taken in event time order, and one is dropped when it is within watermarkDelay of
+	 * the last one kept.
+	 */
+	public Dataset<Row> applyBatch(Dataset<Row> batch) {
+		final int key = DimensionCache.indexOf(batch.schema(), keyColumn);
+		final int eventTime = DimensionCache.indexOf(batch.schema(), eventTimeColumn);
+		final long delayMs = ((ProcessingTimeTrigger) Trigger.ProcessingTime(watermarkDelay)).intervalMs();
+		final LongAccumulator counter = duplicates;
+		return batch
+				.groupByKey((MapFunction<Row, String>) row -> row.isNullAt(key) ? NO_KEY : String.valueOf(row.get(key)),
+						Encoders.STRING())
+				.flatMapGroups((FlatMapGroupsFunction<String, Row, Row>) (group, rows) -> {
+					if (NO_KEY.equals(group)) {
+						return rows;
+					}
+					List<Row> sorted = new ArrayList<>();
+					rows.forEachRemaining(sorted::add);
+					sorted.sort(Comparator.comparingLong(row -> eventTimeMs(row, eventTime)));
+					List<Row> kept = new ArrayList<>();
+					long keptAt = 0;
+					for (Row row : sorted) {
+						long time = eventTimeMs(row, eventTime);
+						if (kept.isEmpty() || time > keptAt + delayMs) {
+							kept.add(row);
+							keptAt = time;
+						}
+					}
+					if (kept.size() < sorted.size() && counter != null) {
+						counter.add(sorted.size() - kept.size());
+					}
+					return kept.iterator();
+				}, RowEncoder.apply(batch.schema()));
+	}
+
+	private static long eventTimeMs(Row row, int eventTime) {
+		return row.isNullAt(eventTime) ? Long.MIN_VALUE : ((Timestamp) row.get(eventTime)).getTime();
+	}
+
+	@Override
+	public Iterator<Row> call(String key, Iterator<Row> rows, GroupState<Long> state) {
+		if (state.hasTimedOut()) {
+			state.remove();
+			return Collections.emptyIterator();
+		}
+		if (NO_KEY.equals(key)) {
+			return rows;
+		}
+		Row first = null;
+		if (!state.exists()) {
+			first = rows.next();
+			Timestamp eventTime = (Timestamp) first.get(eventTimeIndex);
+			state.update(eventTime == null ? state.getCurrentWatermarkMs() : eventTime.getTime());
+		}
+		long dropped = 0;
+		while (rows.hasNext()) {
+			rows.next();
+			dropped++;
+		}
+		if (dropped > 0 && duplicates != null) {
+			duplicates.add(dropped);
+		}
+		// The timeout has to be set on every call; it can not be behind the watermark.
+		state.setTimeoutTimestamp(Math.max(state.get(), state.getCurrentWatermarkMs()));
+		return first == null ? Collections.emptyIterator() : Collections.singletonList(first).iterator();
+	}
+}
@@ -0,0 +1,331 @@
+package example;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.LongAccumulator;
+
+/*
+ * Broadcast cache of a small dimension table, keyed by one of its columns.
+ *
+ * The table is loaded once on the driver, collected into a hash map and broadcast to the executors.
+ * Streams are enriched with a map-side lookup against the broadcast, so no join shuffle is planned and
+ * the database is not queried per micro-batch. The broadcast is swapped atomically when the TTL expires
+ * or, if a version query is configured, when the version it returns changes.
+ */
+public class DimensionCache implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(DimensionCache.class);
+
+	/*
+	 * Loads the dimension table (or its version marker) on the driver.
+	 */
+	public interface Loader extends Serializable {
+		Dataset<Row> load();
+	}
+
+	private final String keyColumn;
+	private final StructType valueSchema;
+
+	private transient SparkSession spark;
+	private transient Loader loader;
+	private transient Loader versionLoader;
+	private transient long ttlMillis;
+	private transient volatile long loadedAt;
+	private transient Object version;
+	private transient ScheduledExecutorService refresher;
+	private LongAccumulator hits;
+	private LongAccumulator misses;
+
+	// Read when the lookup function is serialized for each micro-batch, so a swap is picked up by the next batch.
+	private volatile Broadcast<Map<String, Row>> current;
+
+	/*
+	 * Loads the dimension and broadcasts it.
+	 *
+	 * ttlSeconds <= 0 disables time based refresh. versionLoader may be null; when set, it must return a
+	 * single row whose first column changes whenever the table content changes.
+	 */
+	public DimensionCache(SparkSession spark, Loader loader, String keyColumn, long ttlSeconds, Loader versionLoader) {
+		this.spark = spark;
+		this.loader = loader;
+		this.keyColumn = keyColumn;
+		this.versionLoader = versionLoader;
+		this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+
+		Dataset<Row> table = loader.load();
+		this.valueSchema = valueSchema(table.schema(), keyColumn);
+		this.version = readVersion();
+		swap(collect(table));
+	}
+
+	/*
+	 * Refresh the broadcast in the background, checking every checkIntervalSeconds whether the TTL has
+	 * expired or the version has changed.
+	 */
+	public synchronized DimensionCache startRefresh(long checkIntervalSeconds) {
+		if (refresher == null) {
+			refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "dimension-cache-" + keyColumn);
+				t.setDaemon(true);
+				return t;
+			});
+			refresher.scheduleWithFixedDelay(() -> {
+				try {
+					refreshIfStale();
+				} catch (Exception e) {
+					// Keep serving the previous broadcast, try again on the next tick.
+					log.warn("Dimension refresh failed, keeping the current version", e);
+				}
+			}, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+		}
+		return this;
+	}
+
+	public synchronized void stopRefresh() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	/*
+	 * Reload the table if the TTL has expired or the version marker changed. Returns true if swapped.
+	 */
+	public synchronized boolean refreshIfStale() {
+		boolean expired = ttlMillis > 0 && System.currentTimeMillis() - loadedAt >= ttlMillis;
+		Object latestVersion = readVersion();
+		boolean changed = versionLoader != null && !Objects.equals(version, latestVersion);
+		if (!expired && !changed) {
+			return false;
+		}
+		Dataset<Row> table = loader.load();
+		if (!valueSchema.equals(valueSchema(table.schema(), keyColumn))) {
+			throw new IllegalStateException("Schema of dimension keyed by " + keyColumn + " changed, restart required");
+		}
+		version = latestVersion;
+		swap(collect(table));
+		return true;
+	}
+
+	/*
+	 * Count the stream rows that found (hits) or did not find (misses) their key in the dimension.
+	 */
+	public DimensionCache withLookupCounters(LongAccumulator hits, LongAccumulator misses) {
+		this.hits = hits;
+		this.misses = misses;
+		return this;
+	}
+
+	/*
+	 * When the current broadcast was loaded; changes with every swap.
+	 */
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	public int size() {
+		return current.value().size();
+	}
+
+	public StructType getValueSchema() {
+		return valueSchema;
+	}
+
+	/*
+	 * Inner join of the stream with the dimension through a map-side lookup on streamKeyColumn.
+	 *
+	 * The result has the stream columns followed by the dimension columns (without the dimension key).
+	 * Stream rows without a matching key are dropped.
+	 */
+	public Dataset<Row> enrich(Dataset<Row> stream, String streamKeyColumn) {
+		return enrich(stream, streamKeyColumn, hits, misses);
+	}
+
+	/*
+	 * enrich() counting the lookups with the given counters instead, e.g. of one of several pipelines sharing
+	 * the cache.
+	 */
+	public Dataset<Row> enrich(Dataset<Row> stream, String streamKeyColumn, LongAccumulator hits,
+							   LongAccumulator misses) {
+		StructType outSchema = stream.schema();
+		for (StructField field : valueSchema.fields()) {
+			outSchema = outSchema.add(field);
+		}
+		int keyIndex = indexOf(stream.schema(), streamKeyColumn);
+		return stream.mapPartitions(new Lookup(this, keyIndex, hits, misses), RowEncoder.apply(outSchema));
+	}
+
+	private void swap(Map<String, Row> table) {
+		JavaSparkContext jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
+		Broadcast<Map<String, Row>> previous = current;
+		current = jsc.broadcast(table);
+		loadedAt = System.currentTimeMillis();
+		log.info("Broadcast dimension keyed by " + keyColumn + ": " + table.size() + " rows, version " + version);
+		if (previous != null) {
+			// Non-blocking: tasks still holding the old broadcast re-fetch it from the driver if needed.
+			previous.unpersist(false);
+		}
+	}
+
+	private Map<String, Row> collect(Dataset<Row> table) {
+		return index(table.collectAsList(), table.schema(), keyColumn);
+	}
+
+	/*
+	 * Lookup table of rows: key column value -> the other columns. Rows with a null key are skipped.
+	 */
+	static Map<String, Row> index(List<Row> rows, StructType schema, String keyColumn) {
+		int keyIndex = indexOf(schema, keyColumn);
+		int width = schema.size();
+		Map<String, Row> map = new HashMap<>(rows.size() * 2);
+		for (Row row : rows) {
+			if (row.isNullAt(keyIndex)) {
+				continue;
+			}
+			List<Object> values = new ArrayList<>(width - 1);
+			for (int i = 0; i < width; i++) {
+				if (i != keyIndex) {
+					values.add(row.get(i));
+				}
+			}
+			map.put(String.valueOf(row.get(keyIndex)), RowFactory.create(values.toArray()));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	private Object readVersion() {
+		if (versionLoader == null) {
+			return null;
+		}
+		List<Row> rows = versionLoader.load().collectAsList();
+		return rows.isEmpty() ? null : rows.get(0).get(0);
+	}
+
+	/*
+	 * Column lookup ignoring case, JDBC sources report Oracle identifiers in upper case.
+	 */
+	static int indexOf(StructType schema, String column) {
+		String[] names = schema.fieldNames();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(column)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Column " + column + " not found in " + schema.simpleString());
+	}
+
+	private static StructType valueSchema(StructType schema, String keyColumn) {
+		int keyIndex = indexOf(schema, keyColumn);
+		StructType value = new StructType();
+		StructField[] fields = schema.fields();
+		for (int i = 0; i < fields.length; i++) {
+			if (i != keyIndex) {
+				value = value.add(fields[i]);
+			}
+		}
+		return value;
+	}
+
+	private static class Lookup implements MapPartitionsFunction<Row, Row> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final DimensionCache cache;
+		private final int keyIndex;
+		private final LongAccumulator hits;
+		private final LongAccumulator misses;
+
+		Lookup(DimensionCache cache, int keyIndex, LongAccumulator hits, LongAccumulator misses) {
+			this.cache = cache;
+			this.keyIndex = keyIndex;
+			this.hits = hits;
+			this.misses = misses;
+		}
+
+		@Override
+		public Iterator<Row> call(Iterator<Row> input) {
+			return lookup(cache.current.value(), keyIndex, input, hits, misses);
+		}
+	}
+
+	/*
+	 * Inner join of input with table on the column at keyIndex. hits and misses may be null.
+	 */
+	static Iterator<Row> lookup(Map<String, Row> table, int keyIndex, Iterator<Row> input, LongAccumulator hits,
+								LongAccumulator misses) {
+		return new Iterator<Row>() {
+			private Row next = advance();
+
+			private Row advance() {
+				while (input.hasNext()) {
+					Row row = input.next();
+					if (row.isNullAt(keyIndex)) {
+						continue;
+					}
+					Row match = table.get(String.valueOf(row.get(keyIndex)));
+					if (match != null) {
+						if (hits != null) {
+							hits.add(1);
+						}
+						return join(row, match);
+					}
+					if (misses != null) {
+						misses.add(1);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Row next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Row result = next;
+				next = advance();
+				return result;
+			}
+		};
+	}
+
+	private static Row join(Row left, Row right) {
+		Object[] values = new Object[left.size() + right.size()];
+		for (int i = 0; i < left.size(); i++) {
+			values[i] = left.get(i);
+		}
+		for (int i = 0; i < right.size(); i++) {
+			values[left.size() + i] = right.get(i);
+		}
+		return RowFactory.create(values);
+	}
+}
@@ -1,9 +1,7 @@
 package example;
 
 import com.oracle.bmc.Region;
-import com.oracle.bmc.auth.AbstractAuthenticationDetailsProvider;
 import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
-import com.oracle.bmc.http.ClientConfigurator;
 import com.oracle.bmc.secrets.Secrets;
 import com.oracle.bmc.secrets.SecretsClient;
 import com.oracle.bmc.secrets.model.Base64SecretBundleContentDetails;
@@ -11,37 +9,33 @@ import com.oracle.bmc.secrets.requests.GetSecretBundleRequest;
 import com.oracle.bmc.secrets.responses.GetSecretBundleResponse;
 import org.apache.commons.codec.binary.Base64;
 
+import java.io.IOException;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 
 import com.oracle.bmc.auth.ResourcePrincipalAuthenticationDetailsProvider;
 
 import oracle.jdbc.driver.OracleConnection;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.apache.spark.SparkConf;
-import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.SparkContext;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SparkSession;
-import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
-import org.apache.spark.sql.catalyst.encoders.RowEncoder;
-import org.apache.spark.sql.functions;
+import org.apache.spark.sql.execution.streaming.ProcessingTimeTrigger;
+import org.apache.spark.sql.streaming.DataStreamReader;
 import org.apache.spark.sql.streaming.StreamingQuery;
 import org.apache.spark.sql.streaming.Trigger;
-import org.apache.spark.sql.types.*;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-
-
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.concurrent.TimeoutException;
-import static org.apache.spark.sql.functions.*;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 public class Example {
 
@@ -57,220 +51,594 @@ public class Example {
 		//Uncomment following line to enable debug log level.
 		//Logger.getRootLogger().setLevel(Level.DEBUG);
 
-		String bootstrapServers = "cell-1.streaming.us-ashburn-1.oci.oraclecloud.com:9092";
-		String topics = "kafka_like";
-		String streamPoolId = "ocid1.streampool.oc1.iad.a...............................5a";
-		String kafkaUsername = "<tenancyName>/oracleidentitycloudservice/<userNameEmail>/" + streamPoolId;
-		String kafkaPassword = "<userNameEmailToken>";
-		String jaasTemplate = "org.apache.kafka.common.security.plain.PlainLoginModule required username=\"%s\" password=\"%s\";";
-		String jaasCfg = String.format(jaasTemplate, kafkaUsername, kafkaPassword);
-
-		String OBJECT_STORAGE_NAMESPACE = "<tenancyNamespace>";
-		String checkpointLocation = "streamOutput/";
-		String type = "csv";
-		String outputLocation = "oci://data@" + OBJECT_STORAGE_NAMESPACE + "/";
-
-		String OCI_URI_WALLET = "oci://Wallet@" + OBJECT_STORAGE_NAMESPACE;
-		String DATABASE_NAME = "logs";
-		String PASSWORD_SECRET_OCID = "ocid1.vaultsecret.oc1.iad.a...................................a";
-		String WALLET_PATH = OCI_URI_WALLET + "/Wallet_" + DATABASE_NAME + ".zip";
-		String TNS_NAME = DATABASE_NAME + "_high";
-		String USER="ADMIN";
-		String passwordOcid = PASSWORD_SECRET_OCID; // TODO <the vault secret OCID>
-		String user = "ADMIN"; //DB user name
-		String tnsName = TNS_NAME; // this can be found inside of the wallet.zip (unpack it), then open tnsnames.ora
-		String source = null;
-
-		Map<String, String> options = new HashMap<String, String>();
-
-		switch (type) {
-			case "console":
-				System.err.println("Using console output sink");
-				break;
-
-			case "csv":
-				System.err.println("Using csv output sink, output location = " + outputLocation);
-				break;
-
-			default:
-				printUsage();
+		PipelineConfig config = PipelineConfig.load(args);
+		System.out.println("Pipeline configuration:\n" + config);
+
+		// A host runs the pipelines listed in "pipelines" side by side in one SparkSession, each with the
+		// pipeline.<name>.* keys on top of the others; without the list the configuration is the only pipeline.
+		Map<String, PipelineConfig> pipelines = new LinkedHashMap<>();
+		for (String name : config.getList("pipelines")) {
+			pipelines.put(name, config.forPipeline(name));
+		}
+		boolean host = !pipelines.isEmpty();
+		if (!host) {
+			pipelines.put(null, config);
+		}
+
+		String WALLET_PATH = config.get("adw.walletUri");
+		URI walletUri = new URI(WALLET_PATH);
+		String OCI_URI_WALLET = walletUri.getScheme() + "://" + walletUri.getAuthority();
+		String TNS_NAME = config.get("adw.tnsName"); // this can be found inside of the wallet.zip (unpack it), then open tnsnames.ora
+		String USER = config.get("adw.user");
+		String passwordOcid = config.get("adw.passwordSecretOcid");
+		String user = USER; //DB user name
+		String tnsName = TNS_NAME;
+		boolean inDataFlow = DataFlowSparkSession.isRunningInDataFlow();
+		// The Data Flow oracle source handles the wallet itself, a local run reads ADW through jdbc.
+		String source = inDataFlow ? "oracle" : "jdbc";
+		System.out.println("source=" + source);
+
+		boolean adwSink = false;
+		for (PipelineConfig pipeline : pipelines.values()) {
+			adwSink |= BatchSinks.uses(pipeline, "sink", "adw") || BatchSinks.uses(pipeline, "sink.malformed", "adw")
+					|| BatchSinks.uses(pipeline, "aggregate.sink", "adw");
 		}
+		// Locally the wallet is needed for the jdbc URL, in Data Flow only by the executors writing to ADW.
+		boolean deployWallet = !inDataFlow || adwSink;
 
-		SparkSession spark;
-		BasicAuthenticationDetailsProvider provider = null;
+		// The startup steps run concurrently, each as soon as the steps it needs are done. The streams start
+		// once the session, the decoder and the sinks are ready; the first micro-batch waits for the dimension.
+		Bootstrap bootstrap = new Bootstrap();
 
 		// ---------------------------------------------------------------------
 		// 1 - SparkSession
-		System.out.println("---------------------------------------------------------------------------------");
-		System.out.println("1 - SparkSession");
-		JavaSparkContext jsc = null;
-
-		if (DataFlowSparkSession.isRunningInDataFlow()) {
-			spark = SparkSession.builder()
-					.appName("StructuredKafkaWordCount")
-					.config("spark.sql.streaming.minBatchesToRetain", "10")
-					.config("spark.sql.shuffle.partitions", "1")
-					.config("spark.sql.streaming.stateStore.maintenanceInterval", "300")
-					.getOrCreate();
-			provider = ResourcePrincipalAuthenticationDetailsProvider.builder().build();
-			options.put("walletUri", WALLET_PATH);
-			options.put("connectionId", TNS_NAME);
-			options.put("user", USER);
-			source = "oracle";
-		} else {
-			spark = SparkSession.builder()
-					.appName("StructuredKafkaWordCount")
-					.master("local[*]")
-					.config("spark.sql.streaming.minBatchesToRetain", "10")
-					.config("spark.sql.shuffle.partitions", "1")
-					.config("spark.sql.streaming.stateStore.maintenanceInterval", "300")
-					.getOrCreate();
-			provider = OboTokenClientConfigurator.getAuthProvider(null);
-
-			// Download the wallet from object storage and distribute it.
-			jsc = JavaSparkContext.fromSparkContext(spark.sparkContext());
-			String delegationTokenPath = OboTokenClientConfigurator.getDelegationTokenPath();
-			String tmpPath = DataFlowDeployWallet.deployWallet(new URI(OCI_URI_WALLET), spark.sparkContext(),
-					OboTokenClientConfigurator.getConfiguration(jsc.hadoopConfiguration(), delegationTokenPath), WALLET_PATH);
-
-			String jdbcUrl = MessageFormat.format("jdbc:oracle:thin:@{0}?TNS_ADMIN={1}", tnsName, tmpPath);
-			System.out.println("JDBC URL " + jdbcUrl);
-
-			options.put("driver", "oracle.jdbc.driver.OracleDriver");
-			options.put("url", jdbcUrl);
-			options.put(OracleConnection.CONNECTION_PROPERTY_USER_NAME, user);
-			options.put(OracleConnection.CONNECTION_PROPERTY_TNS_ADMIN, tmpPath);
-			source = "jdbc";
-		}
-		System.out.println("source=" + source);
+		CompletableFuture<SparkSession> session = bootstrap.step("sparkSession", () -> {
+			// Settings of the session.profile (Kryo, off-heap memory, buffers, codecs) with the spark.* keys of the
+			// pipeline configuration on top: shuffle partitions, state store retention etc.
+			SparkSession.Builder builder = SparkSession.builder().appName(config.get("app.name"));
+			for (Map.Entry<String, String> x : DataFlowSparkSession.withProfile(config.get("session.profile", null),
+					config.getSparkConf()).entrySet()) {
+				builder.config(x.getKey(), x.getValue());
+			}
+			// State of the deduplication and the windowed aggregates: state.provider, e.g. off-heap RocksDB on Spark 3.2+.
+			StateStores.configure(builder, config);
+			// The pipelines of a host share the cores through a FAIR scheduler pool each.
+			if (host) {
+				SchedulerPools.configure(builder, pipelines);
+			}
+			if (!inDataFlow) {
+				builder.master("local[*]");
+			}
+			return builder.getOrCreate();
+		});
+		CompletableFuture<BasicAuthenticationDetailsProvider> auth = bootstrap.step("authProvider", () -> {
+			if (inDataFlow) {
+				return ResourcePrincipalAuthenticationDetailsProvider.builder().build();
+			}
+			return OboTokenClientConfigurator.getAuthProvider(null);
+		});
+
+		// Download the wallet from object storage and distribute it.
+		CompletableFuture<String> wallet = !deployWallet ? CompletableFuture.completedFuture(null)
+				: bootstrap.step("wallet", () -> {
+					SparkContext sc = session.join().sparkContext();
+					String delegationTokenPath = OboTokenClientConfigurator.getDelegationTokenPath();
+					return DataFlowDeployWallet.deployWallet(new URI(OCI_URI_WALLET), sc,
+							OboTokenClientConfigurator.getConfiguration(sc.hadoopConfiguration(), delegationTokenPath), WALLET_PATH);
+				}, session);
 		// ---------------------------------------------------------------------
 
 		// ---------------------------------------------------------------------
 		// 2 - Secret Vault
-		System.out.println("---------------------------------------------------------------------------------");
-		System.out.println("2 - Secret Vault");
-		SecretsClient secretsClient;
-
-		secretsClient = new SecretsClient(provider);
-		secretsClient.setRegion(Region.US_ASHBURN_1);
-
-		String password = new String(getSecret(passwordOcid, secretsClient));
+		// Secrets are read once, served from memory and refreshed in the background before they expire.
+		CompletableFuture<CachingSecretProvider> secretsStep = bootstrap.step("secrets", () -> {
+			SecretsClient secretsClient = OciClientRegistry.getSecretsClient(auth.join(),
+					Region.fromRegionId(config.get("oci.region")));
+			CachingSecretProvider secretProvider = new CachingSecretProvider(new VaultSecretProvider(secretsClient),
+					config.getLong("secrets.ttlSeconds", 3600), config.getLong("secrets.refreshAheadSeconds", 300));
+			Set<String> secretOcids = new LinkedHashSet<>();
+			for (PipelineConfig pipeline : pipelines.values()) {
+				secretOcids.addAll(pipeline.getList("secrets.prefetch"));
+			}
+			secretOcids.add(passwordOcid);
+			secretProvider.prefetch(new ArrayList<>(secretOcids));
+			return secretProvider;
+		}, auth);
 		// ---------------------------------------------------------------------
 
+		// ---------------------------------------------------------------------
 		// 3 - Query a table from ADW: SELECT
-		System.out.println("---------------------------------------------------------------------------------");
-		System.out.println("3 - Query a table from ADW: SELECT");
-		options.put("password", password);
-		options.put("query", "select * from gdppercapta");
+		CompletableFuture<Map<String, String>> adwConnection = bootstrap.step("adwConnection", () -> {
+			Map<String, String> options = new HashMap<String, String>();
+			if (inDataFlow) {
+				options.put("walletUri", WALLET_PATH);
+				options.put("connectionId", TNS_NAME);
+				options.put("user", USER);
+			} else {
+				String tmpPath = wallet.join();
+				String jdbcUrl = MessageFormat.format("jdbc:oracle:thin:@{0}?TNS_ADMIN={1}", tnsName, tmpPath);
+				System.out.println("JDBC URL " + jdbcUrl);
+
+				options.put("driver", "oracle.jdbc.driver.OracleDriver");
+				options.put("url", jdbcUrl);
+				options.put(OracleConnection.CONNECTION_PROPERTY_USER_NAME, user);
+				options.put(OracleConnection.CONNECTION_PROPERTY_TNS_ADMIN, tmpPath);
+			}
+			options.put("password", secretsStep.join().getSecretString(passwordOcid));
+			return options;
+		}, secretsStep, inDataFlow ? CompletableFuture.completedFuture(null) : wallet);
+
+		// The dimension is loaded once and broadcast, the stream is enriched without querying ADW per batch.
+		// It is read over parallel connections, with only the columns and rows the enrichment needs. Pipelines
+		// reading the dimension with the same settings share it.
+		Map<String, CompletableFuture<DimensionCache>> dimensions = new HashMap<>();
+		Map<String, SkewAwareJoin> dimensionJoins = new HashMap<>();
+		List<Pipeline> running = new ArrayList<>();
+		for (Map.Entry<String, PipelineConfig> entry : pipelines.entrySet()) {
+			String name = entry.getKey();
+			PipelineConfig pipelineConfig = entry.getValue();
+			String enrichTable = pipelineConfig.get("enrich.table");
+			String dimensionKey = dimensionKey(pipelineConfig);
+			CompletableFuture<DimensionCache> gdpCache = CompletableFuture.completedFuture(null);
+			SkewAwareJoin gdpJoin = null;
+			if (!"join".equals(pipelineConfig.get("enrich.mode", "broadcast"))) {
+				gdpCache = dimensions.get(dimensionKey);
+				if (gdpCache == null) {
+					gdpCache = bootstrap.step(stepName("dimension", name), () -> {
+						SparkSession dimensionSpark = session.join();
+						Map<String, String> options = adwConnection.join();
+						DimensionCache.Loader versionLoader = null;
+						if (pipelineConfig.has("enrich.versionQuery")) {
+							Map<String, String> versionOptions = new HashMap<String, String>(options);
+							versionOptions.put("query", pipelineConfig.get("enrich.versionQuery"));
+							versionLoader = () -> dimensionSpark.read().format(source).options(versionOptions).load();
+						}
+						AdwTableReader dimensionReader = dimensionReader(dimensionSpark, source, options, pipelineConfig);
+						DimensionCache cache = new DimensionCache(dimensionSpark,
+								() -> dimensionReader.load(enrichTable),
+								pipelineConfig.get("enrich.key"), pipelineConfig.getLong("enrich.ttlSeconds", 0), versionLoader)
+								.startRefresh(pipelineConfig.getLong("enrich.checkSeconds", 60));
+						System.out.println(enrichTable + " rows cached=" + cache.size());
+						return cache;
+					}, session, adwConnection);
+					dimensions.put(dimensionKey, gdpCache);
+				}
+			} else {
+				// A dimension too large to broadcast is joined per batch instead, with the hot keys broadcast.
+				gdpJoin = dimensionJoins.computeIfAbsent(dimensionKey, key -> new SkewAwareJoin(() -> dimensionReader(
+						session.join(), source, adwConnection.join(), pipelineConfig).load(enrichTable),
+						pipelineConfig.get("enrich.key"), pipelineConfig.getLong("enrich.ttlSeconds", 0))
+						.withHotKeys(Double.parseDouble(pipelineConfig.get("enrich.skew.hotKeyFraction", "0.05")),
+								pipelineConfig.getInt("enrich.skew.maxHotKeys", 20)));
+			}
+			// ---------------------------------------------------------------------
+
+			// Every pipeline has a session of its own over the shared context: its SQL settings, temporary views
+			// and streaming queries do not clash with those of the others.
+			CompletableFuture<SparkSession> pipelineSession = !host ? session
+					: bootstrap.step(stepName("sparkSession", name), () -> {
+						SparkSession pipelineSpark = session.join().newSession();
+						for (Map.Entry<String, String> x : pipelineConfig.getSparkConf().entrySet()) {
+							if (x.getValue().equals(config.getSparkConf().get(x.getKey()))) {
+								continue;
+							}
+							if (pipelineSpark.conf().isModifiable(x.getKey())) {
+								pipelineSpark.conf().set(x.getKey(), x.getValue());
+							} else {
+								log.warn("Pipeline " + name + ": " + x.getKey() + " applies to the whole session, set it for all pipelines");
+							}
+						}
+						return pipelineSpark;
+					}, session);
+
+			// Throughput, stage latencies, decode errors, join hit rate and Kafka lag, exported through the
+			// Spark metrics system and, if configured, as Prometheus text.
+			CompletableFuture<PipelineMetrics> metricsStep = bootstrap.step(stepName("metrics", name), () -> {
+				PipelineMetrics pipelineMetrics = new PipelineMetrics(name).register(pipelineSession.join());
+				if (pipelineConfig.getSparkConf().containsValue(ReadOptimizedFileSystem.class.getName())) {
+					pipelineMetrics.withReadOptimizedFileSystem();
+				}
+				if (pipelineConfig.getInt("metrics.prometheus.port", 0) > 0) {
+					pipelineMetrics.startHttpServer(pipelineConfig.getInt("metrics.prometheus.port", 0));
+				}
+				if (pipelineConfig.has("metrics.prometheus.file")) {
+					pipelineMetrics.startFileExport(pipelineConfig.get("metrics.prometheus.file"),
+							pipelineConfig.getLong("metrics.prometheus.fileIntervalSeconds", 30));
+				}
+				return pipelineMetrics;
+			}, pipelineSession);
+
+			// Decode straight from the value bytes (JSON, Avro or Protobuf), records that can not be decoded go
+			// to a side output. The Kafka timestamp is kept as the event time of the stateful stages.
+			CompletableFuture<ValueDecoder> decoderStep = bootstrap.step(stepName("decoder", name),
+					() -> decoder(pipelineConfig, session.join(), metricsStep.join()), session, metricsStep);
+
+			running.add(new Pipeline(name, pipelineConfig, pipelineSession, metricsStep, decoderStep, gdpCache, gdpJoin));
+		}
+		bootstrap.all().whenComplete((done, e) -> log.info(bootstrap.report()));
+
+		SparkSession spark = Bootstrap.await(session);
+		Exception failure = null;
+		try {
+			// Only the adw sinks need the secrets and the wallet before the streams start; the dimension waits for
+			// them on its own.
+			CachingSecretProvider secrets = adwSink ? Bootstrap.await(secretsStep) : null;
+			if (adwSink) {
+				Bootstrap.await(wallet);
+			}
+
+			// A single pipeline runs on the main thread. The pipelines of a host run on a thread each, in their
+			// scheduler pool; one failing is logged and the others keep running.
+			if (!host) {
+				try {
+					running.get(0).run(secrets, source);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					printUsage();
+				}
+			} else {
+				for (Pipeline pipeline : running) {
+					pipeline.thread = new Thread(() -> {
+						try {
+							SchedulerPools.use(spark, pipeline.name);
+							pipeline.run(secrets, source);
+							log.info("Pipeline " + pipeline.name + " stopped");
+						} catch (Exception e) {
+							pipeline.failure = e;
+							log.error("Pipeline " + pipeline.name + " failed, the others keep running", e);
+						}
+					}, "pipeline-" + pipeline.name);
+					pipeline.thread.start();
+				}
+				for (Pipeline pipeline : running) {
+					pipeline.thread.join();
+					if (failure == null) {
+						failure = pipeline.failure;
+					}
+				}
+			}
+		} finally {
+			for (CompletableFuture<DimensionCache> gdpCache : dimensions.values()) {
+				if (!gdpCache.isCompletedExceptionally() && gdpCache.getNow(null) != null) {
+					gdpCache.getNow(null).stopRefresh();
+				}
+			}
+			secretsStep.thenAccept(CachingSecretProvider::shutdown);
+			bootstrap.shutdown();
+			spark.stop();
+		}
+		if (failure != null) {
+			throw failure;
+		}
 
-		Dataset<Row> oracleDF2 = spark.read().format(source).options(options).load();
-		oracleDF2.show();
-		// ---------------------------------------------------------------------
+	}
 
-		// 4 - Kafka
-		System.out.println("---------------------------------------------------------------------------------");
-		System.out.println("4 - Kafka");
-		// Create DataFrame representing the stream of input lines from Kafka
-		Dataset<Row> lines = spark
-				.readStream()
-				.format("kafka")
-				.option("kafka.bootstrap.servers", bootstrapServers)
-				.option("subscribe", topics)
-				.option("kafka.security.protocol", "SASL_SSL")
-				.option("kafka.sasl.mechanism", "PLAIN")
-				.option("kafka.sasl.jaas.config", jaasCfg)
-				.option("kafka.max.partition.fetch.bytes", 1024 * 1024) // limit request size to 1MB per partition
-				.option("startingOffsets", "latest")
-				.load();
-
-		Dataset<Row> filteredDataset = lines.selectExpr("CAST(key AS STRING)", "CAST(value AS STRING)")
-				.filter("value IS NOT NULL");
-
-		StructType schema = new StructType()
-				.add("Organization Id", DataTypes.StringType)
-				.add("Name", DataTypes.StringType)
-				.add("Country", DataTypes.StringType);
-
-		Dataset<Row> formattedDataset = filteredDataset
-				.select(from_json(col("value"), schema).as("json"))
-				.select(col("json.Organization Id"), col("json.Name"), col("json.Country"));
-
-		System.out.println("From kafka");
-		StreamingQuery queryFormatted = formattedDataset.writeStream().format("console").start();
-		// ---------------------------------------------------------------------
+	/*
+	 * One pipeline of the driver: Kafka source, decoding, deduplication, enrichment and sinks, run until its
+	 * queries terminate.
+	 *
+	 * LoadTest runs it with another source in place of Kafka (see withSource) and sinks of its own next to the
+	 * configured ones (see withSinks).
+	 */
+	static final class Pipeline {
+		final String name;
+		final PipelineConfig config;
+		final CompletableFuture<SparkSession> session;
+		final CompletableFuture<PipelineMetrics> metricsStep;
+		final CompletableFuture<ValueDecoder> decoderStep;
+		final CompletableFuture<DimensionCache> cache;
+		final SkewAwareJoin join;
+		Function<SparkSession, Dataset<Row>> input;
+		List<BatchSink> extraSinks = new ArrayList<>();
+		Thread thread;
+		volatile Exception failure;
+
+		Pipeline(String name, PipelineConfig config, CompletableFuture<SparkSession> session,
+				 CompletableFuture<PipelineMetrics> metricsStep, CompletableFuture<ValueDecoder> decoderStep,
+				 CompletableFuture<DimensionCache> cache, SkewAwareJoin join) {
+			this.name = name;
+			this.config = config;
+			this.session = session;
+			this.metricsStep = metricsStep;
+			this.decoderStep = decoderStep;
+			this.cache = cache;
+			this.join = join;
+		}
 
-		// ---------------------------------------------------------------------
-		// 5 - Merge data
-		System.out.println("---------------------------------------------------------------------------------");
-		System.out.println("5 - Merge data");
-		formattedDataset.createOrReplaceTempView("organizations");
-		oracleDF2.createOrReplaceTempView("gdppercapta");
-
-		Dataset<Row> finalDataset = spark.sql("SELECT a.`organization id` as organization, a.name, a.country, b.area FROM organizations a, gdppercapta b where a.country = b.country");
-		StreamingQuery queryFinal = finalDataset.writeStream().format("console").start();
-		// ---------------------------------------------------------------------
+		/*
+		 * Reads the stream from input instead of Kafka: rows with the binary "value" and the "timestamp" columns
+		 * of the Kafka source. The steps that only apply to Kafka, i.e. the lag metrics, the adaptive rate
+		 * controller and the backfill, are left out.
+		 */
+		Pipeline withSource(Function<SparkSession, Dataset<Row>> input) {
+			this.input = input;
+			return this;
+		}
 
-		// Start streaming query
-		StreamingQuery query = null;
-		switch (type) {
-			case "console":
-				query = outputToConsole(finalDataset, checkpointLocation);
-				break;
-			case "csv":
-				query = outputToCsv(finalDataset, checkpointLocation, outputLocation);
-				break;
-			default:
-				System.err.println("Unknown type " + type);
-				System.exit(1);
+		/*
+		 * Sinks written after the configured "sink" ones.
+		 */
+		Pipeline withSinks(List<BatchSink> sinks) {
+			extraSinks.addAll(sinks);
+			return this;
 		}
 
-		query.awaitTermination();
-		queryFormatted.awaitTermination();
-		queryFinal.awaitTermination();
-		if (jsc != null) { jsc.close(); }
+		void run(CachingSecretProvider secrets, String source) throws Exception {
+			Logger log = LogManager.getLogger(Example.class);
+			SparkSession spark = Bootstrap.await(session);
+			PipelineMetrics metrics = Bootstrap.await(metricsStep);
+
+			String topics = config.get("kafka.topics");
+
+			String checkpointLocation = config.get("sink.checkpointLocation");
+			String triggerInterval = config.get("trigger.interval");
+			String eventTime = config.get("decode.timestampColumn", "timestamp");
+
+			// Invalid sink settings throw IllegalArgumentException: main prints the usage for a single pipeline,
+			// a host fails this pipeline only.
+			List<BatchSink> sinks = new ArrayList<>(BatchSinks.fromConfig(config, "sink", secrets));
+			sinks.addAll(extraSinks);
+			List<BatchSink> malformedSinks = BatchSinks.fromConfig(config, "sink.malformed", secrets);
+			List<BatchSink> aggregateSinks = BatchSinks.fromConfig(config, "aggregate.sink", secrets);
+			for (BatchSink sink : sinks) {
+				System.err.println("Using output sink " + sink.getName() + (name == null ? "" : " for " + name));
+			}
+			ValueDecoder decoder = Bootstrap.await(decoderStep);
+
+			// ---------------------------------------------------------------------
+			// 4 - Kafka
+			System.out.println("---------------------------------------------------------------------------------");
+			System.out.println("4 - Kafka");
+			// Create DataFrame representing the stream of input lines from Kafka
+			// Bootstrap servers and SASL settings, also used by the kafka sinks.
+			Map<String, String> kafkaOptions = KafkaConnection.options(config);
+			if (input == null && config.getBoolean("metrics.kafkaLag", true)) {
+				metrics.withKafkaLag(kafkaOptions, config.getLong("metrics.kafkaLagIntervalSeconds", 30));
+			}
+			Map<String, String> sourceOptions = new HashMap<String, String>(kafkaOptions);
+			sourceOptions.put("kafka.max.partition.fetch.bytes", String.valueOf(config.getLong("kafka.maxPartitionFetchBytes", 1024 * 1024)));
+			DataStreamReader reader = spark
+					.readStream()
+					.format("kafka")
+					.options(sourceOptions)
+					.option("subscribe", topics)
+					.option("startingOffsets", config.get("kafka.startingOffsets", "latest"));
+			if (config.has("kafka.maxOffsetsPerTrigger")) {
+				reader = reader.option("maxOffsetsPerTrigger", config.getLong("kafka.maxOffsetsPerTrigger", 0));
+			}
+
+			long triggerIntervalMs = ((ProcessingTimeTrigger) Trigger.ProcessingTime(triggerInterval)).intervalMs();
+			AdaptiveRateController rateController = null;
+			if (input == null && config.getBoolean("rate.adaptive", false)) {
+				rateController = new AdaptiveRateController(
+						config.getLong("rate.targetLatencySeconds", 60) * 1000,
+						config.getLong("rate.minOffsetsPerTrigger", 1000),
+						config.getLong("rate.maxOffsetsPerTrigger", 1000000),
+						config.getLong("rate.minIntervalSeconds", 5) * 1000,
+						config.getLong("rate.maxIntervalSeconds", 60) * 1000,
+						Double.parseDouble(config.get("rate.restartThreshold", "0.5")),
+						config.getInt("rate.minBatchesBetweenRestarts", 5))
+						.withInitial(config.getLong("kafka.maxOffsetsPerTrigger", 0), triggerIntervalMs);
+				spark.streams().addListener(rateController);
+				metrics.withRateController(rateController);
+			}
+
+			// Shuffles (stateful stages, enrich.query) get a partition per core and per slice of a trigger.
+			long rowsPerTrigger = rateController != null ? config.getLong("rate.maxOffsetsPerTrigger", 0)
+					: config.getLong("kafka.maxOffsetsPerTrigger", 0);
+			ShufflePartitions.configure(spark, config, "shuffle", rowsPerTrigger);
+
+			// Producers resend organizations: drop the ones already seen within the watermark delay.
+			Deduplicator deduplicator = null;
+			if (config.has("dedup.key")) {
+				deduplicator = new Deduplicator(config.get("dedup.key"), eventTime, config.get("dedup.watermark", "10 minutes"))
+						.withDuplicateCounter(metrics.getDuplicates());
+			}
+			// ---------------------------------------------------------------------
+
+			// ---------------------------------------------------------------------
+			// 5 - Merge data
+			System.out.println("---------------------------------------------------------------------------------");
+			System.out.println("5 - Merge data");
+			String streamKey = config.get("enrich.streamKey");
+			String enrichQuery = config.get("enrich.query");
+			FanOutSink.Stage enrich = enrich(streamKey, metrics);
+			FanOutSink.Stage merge = merge(enrich, enrichQuery);
+			// ---------------------------------------------------------------------
+			// Windowed aggregates of the enriched stream run as a second query, in update mode. The stateful
+			// aggregation needs a streaming plan of its own, so that query reads and decodes the topics again;
+			// its counters and progress are reported apart, as the "aggregates" metrics source.
+			StreamingQuery aggregateQuery = null;
+			PipelineMetrics aggregateMetrics = null;
+			FanOutSink aggregateFanOut = null;
+			if (!aggregateSinks.isEmpty()) {
+				WindowedAggregator aggregator = new WindowedAggregator(eventTime, config.get("aggregate.window"),
+						config.get("aggregate.slide", null), config.get("aggregate.watermark", "10 minutes"),
+						config.getList("aggregate.groupBy"), config.getList("aggregate.expressions", ";"));
+				aggregateMetrics = new PipelineMetrics(name == null ? "aggregates" : name + ".aggregates").register(spark);
+				Dataset<Row> decoded = decoder(config, spark, aggregateMetrics).decode(load(spark, reader));
+				if (deduplicator != null) {
+					decoded = new Deduplicator(config.get("dedup.key"), eventTime, config.get("dedup.watermark", "10 minutes"))
+							.withDuplicateCounter(aggregateMetrics.getDuplicates())
+							.apply(decoded);
+				}
+				aggregateFanOut = new FanOutSink().withMetrics(aggregateMetrics).route(FanOutSink.IDENTITY, aggregateSinks);
+				aggregateQuery = aggregator.apply(enrich(streamKey, aggregateMetrics).apply(ValueDecoder.valid(decoded)))
+						.writeStream()
+						.outputMode("update")
+						.foreachBatch(aggregateFanOut)
+						.option("checkpointLocation", config.get("aggregate.checkpointLocation"))
+						.trigger(Trigger.ProcessingTime(triggerIntervalMs))
+						.start();
+				aggregateMetrics.attach(aggregateQuery);
+			}
+
+			// Continuous processing of the map-only path, if selected and the pipeline stays within what it supports.
+			ContinuousPipeline continuous = null;
+			if ("continuous".equals(config.get("trigger.mode", "microbatch"))) {
+				continuous = new ContinuousPipeline(config.get("continuous.checkpointLocation"),
+						config.get("continuous.checkpointInterval", "1 second"))
+						.withLatency(eventTime, config.get("continuous.latencyColumn", null))
+						.route(merge(enrich, config.get("continuous.enrich.query", enrichQuery)), sinks)
+						.route(ValueDecoder::malformed, malformedSinks);
+				List<String> problems = ContinuousPipeline.checkConfig(config);
+				if (problems.isEmpty()) {
+					problems = continuous.validate(decoder.decode(load(spark, reader)));
+				}
+				if (!problems.isEmpty()) {
+					log.error("trigger.mode=continuous is not possible for this pipeline, running micro-batches instead:\n  "
+							+ String.join("\n  ", problems));
+					continuous = null;
+				}
+			}
+
+			// Start streaming query: every micro-batch is read and decoded once, then written to all the sinks.
+			FanOutSink fanOut = new FanOutSink()
+					.withMetrics(metrics)
+					.route(merge, sinks)
+					.route(ValueDecoder::malformed, malformedSinks);
+
+			// Backfill: a past range of the topics is reprocessed as batch jobs through the same decoding, enrichment
+			// and sinks, using every core, then the live stream starts where the range ends.
+			if (input == null && config.getBoolean("backfill.enabled", false)) {
+				final Deduplicator backfillDeduplicator = deduplicator;
+				long backfillOffsets = config.getLong("backfill.maxOffsetsPerBatch", 0);
+				ShufflePartitions.configure(spark, config, "shuffle", backfillOffsets);
+				String endOffsets = new KafkaBackfill(spark, sourceOptions, config.getList("kafka.topics"),
+						config.get("backfill.checkpointLocation"))
+						.withOffsets(config.get("backfill.startingOffsets", "earliest"), config.get("backfill.endingOffsets", "latest"))
+						.withTimestamps(config.get("backfill.startingTimestamp", null), config.get("backfill.endingTimestamp", null))
+						.withMinPartitions(config.getInt("backfill.minPartitions", ShufflePartitions.cores(spark)))
+						.withMaxOffsetsPerBatch(backfillOffsets)
+						.run(batch -> backfillDeduplicator == null ? decoder.decode(batch)
+								: backfillDeduplicator.applyBatch(decoder.decode(batch)), fanOut);
+				ShufflePartitions.configure(spark, config, "shuffle", rowsPerTrigger);
+				String liveCheckpoint = continuous != null ? config.get("continuous.checkpointLocation") : checkpointLocation;
+				if (KafkaBackfill.hasCheckpoint(spark, liveCheckpoint)) {
+					log.warn("Backfill done, the live stream resumes from its checkpoint " + liveCheckpoint
+							+ " instead of " + endOffsets);
+				} else {
+					log.info("Backfill done, the live stream starts from " + endOffsets);
+					reader = reader.option("startingOffsets", endOffsets);
+				}
+			}
+
+			// With the adaptive rate controller, the query is restarted from its checkpoint to apply new settings.
+			// Continuous queries are restarted when the broadcast dimension is reloaded, their tasks never end.
+			boolean restart;
+			try {
+				do {
+					if (continuous != null) {
+						List<StreamingQuery> queries = continuous.start(decoder.decode(load(spark, reader)));
+						for (StreamingQuery query : queries) {
+							metrics.attach(query);
+						}
+						restart = ContinuousPipeline.awaitTermination(queries, () -> cache.join().getLoadedAt());
+						continue;
+					}
+					if (rateController != null) {
+						reader = reader.option("maxOffsetsPerTrigger", rateController.getMaxOffsetsPerTrigger());
+						triggerIntervalMs = rateController.getTriggerIntervalMs();
+					}
+					Dataset<Row> decoded = decoder.decode(load(spark, reader));
+					if (deduplicator != null) {
+						decoded = deduplicator.apply(decoded);
+					}
+					StreamingQuery query = decoded
+							.writeStream()
+							.foreachBatch(fanOut)
+							.option("checkpointLocation", checkpointLocation)
+							.trigger(Trigger.ProcessingTime(triggerIntervalMs))
+							.start();
+					metrics.attach(query);
+					if (rateController != null) {
+						rateController.attach(query);
+						restart = rateController.awaitTermination(query);
+					} else {
+						query.awaitTermination();
+						restart = false;
+					}
+				} while (restart);
+			} finally {
+				if (aggregateQuery != null) {
+					aggregateQuery.stop();
+					aggregateFanOut.stop();
+					aggregateMetrics.stop();
+				}
+				fanOut.stop();
+				metrics.stop();
+			}
+		}
+
+		private Dataset<Row> load(SparkSession spark, DataStreamReader reader) {
+			return input == null ? reader.load() : input.apply(spark);
+		}
 
+		/*
+		 * Looks the stream up in the dimension, counting with the lookup counters of metrics. Until the
+		 * dimension is loaded the first micro-batch waits for it here, the stream is already running.
+		 */
+		private FanOutSink.Stage enrich(String streamKey, PipelineMetrics metrics) {
+			return batch -> join == null
+					? cache.join().enrich(batch, streamKey, metrics.getEnrichHits(), metrics.getEnrichMisses())
+					: join.enrich(batch, streamKey);
+		}
 	}
 
-	private static void printUsage() {
-		System.err.println("Usage: StructuredKafkaWordCount <bootstrap-servers> " +
-				"<subscribe-topics> <checkpoint-location> <type> ...");
-		System.err.println("<type>: console");
-		System.err.println("<type>: csv <output-location>");
-		System.err.println("<type>: adw <wallet-path> <wallet-password> <tns-name>");
-		System.exit(1);
+	/*
+	 * Decodes straight from the value bytes (JSON, Avro or Protobuf), counting the errors in metrics.
+	 */
+	private static ValueDecoder decoder(PipelineConfig config, SparkSession spark, PipelineMetrics metrics)
+			throws IOException {
+		return ValueDecoders.fromConfig(config,
+				OboTokenClientConfigurator.getConfiguration(new Configuration(spark.sparkContext().hadoopConfiguration()),
+						OboTokenClientConfigurator.getDelegationTokenPath()))
+				.withTimestamp(config.get("decode.timestampColumn", "timestamp"))
+				.withErrorCounter(metrics.getDecodeErrors());
+	}
+
+	private static String stepName(String step, String pipeline) {
+		return pipeline == null ? step : step + "." + pipeline;
 	}
 
-	private static StreamingQuery outputToConsole(Dataset<Row> wordCounts, String checkpointLocation)
-			throws TimeoutException {
-		return wordCounts
-				.writeStream()
-				.format("console")
-				.outputMode("complete")
-				.option("checkpointLocation", checkpointLocation)
-				.start();
+	/*
+	 * The settings that make two pipelines read the same dimension.
+	 */
+	private static String dimensionKey(PipelineConfig config) {
+		Map<String, String> settings = config.getSubset("enrich.");
+		settings.keySet().removeIf(key -> key.equals("streamKey") || key.equals("query") || key.startsWith("skew."));
+		return settings.toString();
 	}
 
-	private static StreamingQuery outputToCsv(Dataset<Row> wordCounts, String checkpointLocation,
-											  String outputLocation) throws TimeoutException {
-		return wordCounts
-				.writeStream()
-				.format("csv")
-				.outputMode("append")
-				.option("checkpointLocation", checkpointLocation)
-				.trigger(Trigger.ProcessingTime("1 minutes"))
-				.option("path", outputLocation)
-				.start();
+	/*
+	 * Enriches the valid records of a batch and runs query over them as the "organizations" view.
+	 */
+	private static FanOutSink.Stage merge(FanOutSink.Stage enrich, String query) {
+		return batch -> {
+			enrich.apply(ValueDecoder.valid(batch)).createOrReplaceTempView("organizations");
+			return batch.sparkSession().sql(query);
+		};
 	}
 
-	private static StreamingQuery outputToADW(Dataset<Row> wordCounts, String walletUri,
-											  String password, String user) throws TimeoutException {
-		return wordCounts
-				.writeStream()
-				.format("oracle")
-				.option("walletUri","oci://<bucket>@<namespace>/Wallet_DATABASE.zip")
-				.option("connectionId","database_medium")
-				.option("dbtable", "schema.tablename")
-				.start();
+	private static AdwTableReader dimensionReader(SparkSession spark, String source, Map<String, String> options,
+												  PipelineConfig config) {
+		return new AdwTableReader(spark, source, options)
+				.withColumns(config.getList("enrich.columns"))
+				.withFilter(config.get("enrich.filter", null))
+				.withPartitionColumn(config.get("enrich.read.partitionColumn", null))
+				.withMaxPartitions(config.getInt("enrich.read.maxPartitions", 8))
+				.withRowsPerPartition(config.getLong("enrich.read.rowsPerPartition", 100000))
+				.withFetchSize(config.getInt("enrich.read.fetchSize", 5000));
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: Example [pipeline.properties] [key=value ...]");
+		System.err.println("See " + PipelineConfig.DEFAULTS_RESOURCE + " for the keys, e.g.:");
+		System.err.println("sink.types=console");
+		System.err.println("sink.types=csv sink.csv.path=<output-location>");
+		System.err.println("sink.types=console,parquet sink.parquet.path=<output-location>");
+		System.err.println("sink.types=adw sink.adw.table=<table> sink.adw.keyColumn=<column>");
+		System.exit(1);
 	}
 
 	public static byte[] getSecret(String secretOcid, SecretsClient secretsClient) {
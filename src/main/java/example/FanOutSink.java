@@ -0,0 +1,232 @@
+package example;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.function.VoidFunction2;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.execution.streaming.StreamExecution;
+import org.apache.spark.storage.StorageLevel;
+
+/*
+ * foreachBatch function that writes one micro-batch to several sinks.
+ *
+ * A single streaming query reads and decodes every record once; the micro-batch is persisted, derived
+ * through the stages of each route (stages shared by several routes are evaluated and persisted once) and
+ * written to all sinks in parallel. Every sink reports its own result, and all persisted data is released
+ * once every sink is done. If any sink failed the micro-batch fails, so Spark retries it.
+ */
+public class FanOutSink implements VoidFunction2<Dataset<Row>, Long> {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(FanOutSink.class);
+
+	/*
+	 * Derives what a sink receives from the micro-batch, e.g. enrichment or the malformed side output.
+	 */
+	public interface Stage extends Serializable {
+		Dataset<Row> apply(Dataset<Row> batch);
+	}
+
+	public static final Stage IDENTITY = batch -> batch;
+
+	/*
+	 * Outcome of one sink for one micro-batch.
+	 */
+	public static class SinkResult implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String sink;
+		private final long batchId;
+		private final long durationMs;
+		private final Throwable error;
+
+		SinkResult(String sink, long batchId, long durationMs, Throwable error) {
+			this.sink = sink;
+			this.batchId = batchId;
+			this.durationMs = durationMs;
+			this.error = error;
+		}
+
+		public String getSink() {
+			return sink;
+		}
+
+		public long getBatchId() {
+			return batchId;
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return "sink=" + sink + " batch=" + batchId + " durationMs=" + durationMs
+					+ (error == null ? " ok" : " failed: " + error);
+		}
+	}
+
+	private static class Route implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Stage stage;
+		private final BatchSink sink;
+
+		Route(Stage stage, BatchSink sink) {
+			this.stage = stage;
+			this.sink = sink;
+		}
+	}
+
+	private final List<Route> routes = new ArrayList<>();
+	private transient ExecutorService writers;
+	private transient PipelineMetrics metrics;
+
+	/*
+	 * Write the output of stage to sink for every micro-batch.
+	 */
+	public FanOutSink route(Stage stage, BatchSink sink) {
+		routes.add(new Route(stage, sink));
+		return this;
+	}
+
+	public FanOutSink route(Stage stage, List<BatchSink> sinks) {
+		for (BatchSink sink : sinks) {
+			route(stage, sink);
+		}
+		return this;
+	}
+
+	/*
+	 * Report the write latency and failures of every sink.
+	 */
+	public FanOutSink withMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	@Override
+	public void call(Dataset<Row> batch, Long batchId) throws Exception {
+		if (routes.isEmpty()) {
+			return;
+		}
+		List<Dataset<Row>> persisted = new ArrayList<>();
+		batch.persist(StorageLevel.MEMORY_AND_DISK());
+		persisted.add(batch);
+		try {
+			// Fill the cache before the writes: otherwise parallel writes each read and decode the batch, and a
+			// write that reads only some partitions (e.g. show()) leaves the state of stateful stages uncommitted
+			// for the others.
+			batch.count();
+			Map<Stage, Integer> uses = new IdentityHashMap<>();
+			for (Route route : routes) {
+				uses.merge(route.stage, 1, Integer::sum);
+			}
+			Map<Stage, Dataset<Row>> outputs = new IdentityHashMap<>();
+			for (Map.Entry<Stage, Integer> use : uses.entrySet()) {
+				Dataset<Row> output = use.getKey().apply(batch);
+				if (use.getValue() > 1 && output != batch) {
+					output.persist(StorageLevel.MEMORY_AND_DISK());
+					persisted.add(output);
+					output.count();
+				}
+				outputs.put(use.getKey(), output);
+			}
+
+			// The writer threads outlive the batch: the jobs of the sinks run in the scheduler pool of the caller,
+			// and the sinks see the id of its query.
+			SparkContext sc = batch.sparkSession().sparkContext();
+			String pool = sc.getLocalProperty(SchedulerPools.POOL_PROPERTY);
+			String query = sc.getLocalProperty(StreamExecution.QUERY_ID_KEY());
+			List<Future<SinkResult>> pending = new ArrayList<>();
+			for (Route route : routes) {
+				Dataset<Row> output = outputs.get(route.stage);
+				pending.add(writers().submit(() -> {
+					sc.setLocalProperty(SchedulerPools.POOL_PROPERTY, pool);
+					sc.setLocalProperty(StreamExecution.QUERY_ID_KEY(), query);
+					return write(route.sink, output, batchId);
+				}));
+			}
+			List<SinkResult> results = new ArrayList<>();
+			for (Future<SinkResult> future : pending) {
+				results.add(future.get());
+			}
+
+			List<String> failed = new ArrayList<>();
+			Throwable cause = null;
+			for (SinkResult result : results) {
+				log.info(result);
+				if (metrics != null) {
+					metrics.recordSink(result);
+				}
+				if (!result.isSuccess()) {
+					failed.add(result.getSink());
+					cause = result.getError();
+				}
+			}
+			if (!failed.isEmpty()) {
+				throw new ExecutionException("Micro-batch " + batchId + " failed for sinks " + failed, cause);
+			}
+		} finally {
+			for (Dataset<Row> dataset : persisted) {
+				dataset.unpersist(false);
+			}
+		}
+	}
+
+	private static SinkResult write(BatchSink sink, Dataset<Row> output, long batchId) {
+		long start = System.currentTimeMillis();
+		try {
+			sink.write(output, batchId);
+			return new SinkResult(sink.getName(), batchId, System.currentTimeMillis() - start, null);
+		} catch (Exception e) {
+			log.error("Sink " + sink.getName() + " failed for micro-batch " + batchId, e);
+			return new SinkResult(sink.getName(), batchId, System.currentTimeMillis() - start, e);
+		}
+	}
+
+	/*
+	 * Shuts the writer threads down once the queries using this sink have stopped; a later micro-batch would
+	 * start new ones.
+	 */
+	public synchronized void stop() {
+		if (writers != null) {
+			writers.shutdown();
+			writers = null;
+		}
+	}
+
+	private synchronized ExecutorService writers() {
+		if (writers == null) {
+			writers = Executors.newFixedThreadPool(routes.size(), r -> {
+				Thread t = new Thread(r, "fan-out-sink");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return writers;
+	}
+}
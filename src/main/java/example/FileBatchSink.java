@@ -0,0 +1,206 @@
+package example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.DataFrameWriter;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.execution.streaming.StreamExecution;
+
+import static org.apache.spark.sql.functions.col;
+
+/*
+ * Appends every micro-batch to a path with one of Spark's file formats (csv, parquet, orc, json).
+ *
+ * For columnar output the batch can be partitioned by columns (e.g. country or an event date) and sized
+ * towards a target file size: the number of files per batch and the records per file are derived from the
+ * estimated batch size, instead of one small file per task. A FileCompactor can merge the small files left
+ * by earlier batches in the background.
+ *
+ * Every batch is written once, however often it is retried: it is written to a staging directory, the files
+ * written are listed in a marker file named after the query and batch id, and only then they are moved into
+ * the path. A batch that already has a marker is not written again, the moves it did not finish are. Only
+ * the marker of the last batch of a query is kept, as only that batch can be retried. Markers and staging
+ * directories start with an underscore, so readers of the path skip them.
+ */
+public class FileBatchSink implements BatchSink {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(FileBatchSink.class);
+
+	private static final String BATCHES_DIR = "_batches";
+	private static final String STAGING_DIR = "_staging";
+
+	private final String name;
+	private final String format;
+	private final String path;
+	private final Map<String, String> options;
+	private final List<String> partitionBy = new ArrayList<>();
+	private long targetFileBytes;
+	private long compactionIntervalSeconds;
+	private int compactionMinFiles;
+	private transient FileCompactor compactor;
+
+	public FileBatchSink(String name, String format, String path, Map<String, String> options) {
+		this.name = name;
+		this.format = format;
+		this.path = path;
+		this.options = options;
+	}
+
+	/*
+	 * Write one directory per value of the given columns.
+	 */
+	public FileBatchSink withPartitioning(List<String> columns) {
+		partitionBy.addAll(columns);
+		return this;
+	}
+
+	/*
+	 * Size the output files of every batch towards targetFileBytes (0 disables).
+	 */
+	public FileBatchSink withTargetFileBytes(long targetFileBytes) {
+		this.targetFileBytes = targetFileBytes;
+		return this;
+	}
+
+	/*
+	 * Merge small files of earlier batches every intervalSeconds, once a directory has minFiles of them.
+	 * Requires a target file size.
+	 */
+	public FileBatchSink withCompaction(long intervalSeconds, int minFiles) {
+		if (intervalSeconds > 0 && !"parquet".equals(format) && !"orc".equals(format)) {
+			throw new IllegalArgumentException("Compaction needs a self-describing format (parquet, orc), not " + format);
+		}
+		this.compactionIntervalSeconds = intervalSeconds;
+		this.compactionMinFiles = minFiles;
+		return this;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void write(Dataset<Row> batch, long batchId) throws IOException {
+		SparkSession spark = batch.sparkSession();
+		Path root = new Path(path);
+		FileSystem fs = root.getFileSystem(spark.sparkContext().hadoopConfiguration());
+		// The query id is kept across restarts from the same checkpoint; a backfill has none.
+		String query = spark.sparkContext().getLocalProperty(StreamExecution.QUERY_ID_KEY());
+		String prefix = (query == null ? "batch" : query) + "_";
+		Path batches = new Path(root, BATCHES_DIR);
+		Path marker = new Path(batches, prefix + batchId);
+		Path staging = new Path(new Path(root, STAGING_DIR), prefix + batchId);
+		if (fs.exists(marker)) {
+			commit(fs, root, staging, marker);
+			log.info(name + ": batch " + batchId + " was already written to " + path + ", skipped");
+			return;
+		}
+
+		// Left over by a failed attempt of this batch.
+		fs.delete(staging, true);
+		Dataset<Row> output = batch;
+		DataFrameWriter<Row> writer;
+		if (targetFileBytes > 0) {
+			// The batch is persisted by the fan-out, counting it is cheap.
+			long rows = batch.count();
+			long rowBytes = Math.max(1, batch.schema().defaultSize());
+			int files = (int) Math.max(1, (rows * rowBytes + targetFileBytes - 1) / targetFileBytes);
+			output = partitionBy.isEmpty() ? batch.repartition(files) : batch.repartition(files, columns());
+			writer = output.write().option("maxRecordsPerFile", Math.max(1, targetFileBytes / rowBytes));
+		} else {
+			writer = output.write();
+		}
+		if (!partitionBy.isEmpty()) {
+			writer = writer.partitionBy(partitionBy.toArray(new String[0]));
+		}
+		writer.format(format).options(options).mode(SaveMode.ErrorIfExists).save(staging.toString());
+
+		List<String> files = new ArrayList<>();
+		list(fs, staging, "", files);
+		Path pending = new Path(batches, "." + prefix + batchId);
+		try (OutputStream out = fs.create(pending, true)) {
+			out.write((String.join("\n", files) + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		if (!fs.rename(pending, marker)) {
+			throw new IOException("Failed to rename " + pending + " to " + marker);
+		}
+		commit(fs, root, staging, marker);
+		for (FileStatus status : fs.listStatus(batches)) {
+			String other = status.getPath().getName();
+			if (other.startsWith(prefix) && !other.equals(marker.getName())) {
+				fs.delete(status.getPath(), false);
+			}
+		}
+
+		if (compactionIntervalSeconds > 0 && targetFileBytes > 0 && compactor == null) {
+			compactor = new FileCompactor(batch.sparkSession(), format, options, path, targetFileBytes,
+					compactionMinFiles, compactionIntervalSeconds * 1000).start(compactionIntervalSeconds);
+		}
+	}
+
+	/*
+	 * Moves the files listed in marker that are still in staging to the same relative path under root, then
+	 * deletes staging. A failed move fails the batch, and its retry moves the rest.
+	 */
+	private static void commit(FileSystem fs, Path root, Path staging, Path marker) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(marker), StandardCharsets.UTF_8))) {
+			String file;
+			while ((file = reader.readLine()) != null) {
+				Path source = new Path(staging, file);
+				if (file.isEmpty() || !fs.exists(source)) {
+					continue;
+				}
+				Path target = new Path(root, file);
+				fs.mkdirs(target.getParent());
+				if (!fs.rename(source, target)) {
+					throw new IOException("Failed to move " + source + " to " + target);
+				}
+			}
+		}
+		fs.delete(staging, true);
+	}
+
+	/*
+	 * The data files under dir, relative to it, without Spark's _SUCCESS and checksum files.
+	 */
+	private static void list(FileSystem fs, Path dir, String relative, List<String> files) throws IOException {
+		for (FileStatus status : fs.listStatus(dir)) {
+			String name = status.getPath().getName();
+			if (name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			if (status.isDirectory()) {
+				list(fs, status.getPath(), relative + name + "/", files);
+			} else {
+				files.add(relative + name);
+			}
+		}
+	}
+
+	private Column[] columns() {
+		Column[] columns = new Column[partitionBy.size()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = col(partitionBy.get(i));
+		}
+		return columns;
+	}
+}
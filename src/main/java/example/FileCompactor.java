@@ -0,0 +1,219 @@
+package example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+
+/*
+ * Background compaction of the small files appended by FileBatchSink.
+ *
+ * Every directory under the output path (the root and each partition directory) is checked on a fixed
+ * delay. When it holds at least minFiles data files smaller than half the target size, and older than the
+ * minimum age, they are rewritten into files of about the target size: the merged files are written to a
+ * temporary directory, moved next to the originals and only then the originals are deleted. Readers listing
+ * the directory in between can see the rows twice, but never miss them.
+ *
+ * Before moving anything, the files to move and the originals to delete are listed in a marker file of the
+ * temporary directory, which is deleted last. A compaction interrupted by a crash or a failed rename is
+ * finished or undone on the next run from that list: once every merged file was moved the originals are
+ * deleted, otherwise the merged files already moved are deleted and the originals kept.
+ */
+public class FileCompactor {
+
+	private static final Logger log = LogManager.getLogger(FileCompactor.class);
+
+	private static final String TEMP_PREFIX = "_compacting-";
+	private static final String MARKER = "_REPLACES";
+	private static final String MOVE = "move ";
+	private static final String DELETE = "delete ";
+
+	private final SparkSession spark;
+	private final String format;
+	private final Map<String, String> options;
+	private final Path root;
+	private final long targetFileBytes;
+	private final int minFiles;
+	private final long minAgeMillis;
+	private ScheduledExecutorService scheduler;
+
+	public FileCompactor(SparkSession spark, String format, Map<String, String> options, String path,
+						 long targetFileBytes, int minFiles, long minAgeMillis) {
+		this.spark = spark;
+		this.format = format;
+		this.options = options;
+		this.root = new Path(path);
+		this.targetFileBytes = targetFileBytes;
+		this.minFiles = minFiles;
+		this.minAgeMillis = minAgeMillis;
+	}
+
+	public synchronized FileCompactor start(long intervalSeconds) {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "file-compactor-" + root.getName());
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					compact();
+				} catch (Exception e) {
+					log.warn("Compaction of " + root + " failed, retrying on the next run", e);
+				}
+			}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+		return this;
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/*
+	 * Compact every directory of the output once. Returns the number of files replaced.
+	 */
+	public int compact() throws IOException {
+		FileSystem fs = root.getFileSystem(spark.sparkContext().hadoopConfiguration());
+		if (!fs.exists(root)) {
+			return 0;
+		}
+		return compact(fs, root);
+	}
+
+	private int compact(FileSystem fs, Path dir) throws IOException {
+		int replaced = 0;
+		long now = System.currentTimeMillis();
+		List<FileStatus> small = new ArrayList<>();
+		long smallBytes = 0;
+		for (FileStatus status : fs.listStatus(dir)) {
+			String name = status.getPath().getName();
+			if (status.isDirectory() && name.startsWith(TEMP_PREFIX)) {
+				recover(fs, dir, status.getPath());
+				continue;
+			}
+			if (name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			if (status.isDirectory()) {
+				replaced += compact(fs, status.getPath());
+			} else if (status.getLen() < targetFileBytes / 2 && now - status.getModificationTime() >= minAgeMillis) {
+				small.add(status);
+				smallBytes += status.getLen();
+			}
+		}
+		if (small.size() < minFiles) {
+			return replaced;
+		}
+
+		String[] inputs = new String[small.size()];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = small.get(i).getPath().toString();
+		}
+		int files = (int) Math.max(1, (smallBytes + targetFileBytes - 1) / targetFileBytes);
+		Path temp = new Path(dir, TEMP_PREFIX + now);
+		spark.read().format(format).options(options).load(inputs).coalesce(files)
+				.write().format(format).options(options).mode(SaveMode.ErrorIfExists).save(temp.toString());
+
+		List<String> moves = new ArrayList<>();
+		for (FileStatus merged : fs.listStatus(temp)) {
+			String name = merged.getPath().getName();
+			if (!name.startsWith("_") && !name.startsWith(".")) {
+				moves.add(name);
+			}
+		}
+		try (OutputStream out = fs.create(new Path(temp, MARKER), false)) {
+			StringBuilder marker = new StringBuilder();
+			for (String name : moves) {
+				marker.append(MOVE).append(name).append('\n');
+			}
+			for (FileStatus status : small) {
+				marker.append(DELETE).append(status.getPath()).append('\n');
+			}
+			out.write(marker.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		// Rename reports most failures by returning false: undo the moves, the originals stay
+		for (String name : moves) {
+			if (!fs.rename(new Path(temp, name), new Path(dir, name))) {
+				recover(fs, dir, temp);
+				throw new IOException("Failed to move " + name + " from " + temp + " to " + dir
+						+ ", the compaction was undone");
+			}
+		}
+		if (!recover(fs, dir, temp)) {
+			return replaced;
+		}
+		log.info("Compacted " + small.size() + " files (" + smallBytes + " bytes) of " + dir + " into " + files);
+		return replaced + small.size();
+	}
+
+	/*
+	 * Finishes or undoes the compaction of dir in temp, see the marker. Returns true if the originals were
+	 * replaced; temp is kept, for the next run, only when some of them could not be deleted.
+	 */
+	private boolean recover(FileSystem fs, Path dir, Path temp) throws IOException {
+		Path marker = new Path(temp, MARKER);
+		if (!fs.exists(marker)) {
+			// Interrupted while writing the merged files, nothing was moved
+			fs.delete(temp, true);
+			return false;
+		}
+		List<String> moves = new ArrayList<>();
+		List<Path> originals = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(marker), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(MOVE)) {
+					moves.add(line.substring(MOVE.length()));
+				} else if (line.startsWith(DELETE)) {
+					originals.add(new Path(line.substring(DELETE.length())));
+				}
+			}
+		}
+		boolean moved = true;
+		for (String name : moves) {
+			moved &= !fs.exists(new Path(temp, name));
+		}
+		if (!moved) {
+			for (String name : moves) {
+				Path target = new Path(dir, name);
+				if (fs.exists(target) && !fs.delete(target, false)) {
+					throw new IOException("Failed to delete " + target + " while undoing the compaction in " + temp);
+				}
+			}
+			fs.delete(temp, true);
+			log.warn("Undid the interrupted compaction of " + dir + ", the original files are kept");
+			return false;
+		}
+		boolean deleted = true;
+		for (Path original : originals) {
+			if (fs.exists(original) && !fs.delete(original, false)) {
+				log.warn("Failed to delete the compacted file " + original + ", retrying on the next run");
+				deleted = false;
+			}
+		}
+		if (deleted) {
+			fs.delete(temp, true);
+		}
+		return deleted;
+	}
+}
@@ -0,0 +1,117 @@
+package example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/*
+ * Decodes the JSON Kafka value straight from its bytes into the fields of a flat schema.
+ *
+ * This replaces from_json over CAST(value AS STRING): the value is not copied into a string, and the
+ * streaming parser only materializes the projected top level fields, skipping everything else.
+ */
+public class JsonValueDecoder extends ValueDecoder {
+
+	private static final long serialVersionUID = 1L;
+
+	// Thread safe and expensive to create, shared by all partitions running in the executor.
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	public JsonValueDecoder(StructType schema) {
+		super(schema);
+		for (StructField field : schema.fields()) {
+			if (!isSupported(field.dataType())) {
+				throw new IllegalArgumentException("Unsupported type " + field.dataType().simpleString() + " for field "
+						+ field.name() + ", only flat schemas of atomic types can be decoded");
+			}
+		}
+	}
+
+	@Override
+	protected RecordDecoder newRecordDecoder() {
+		// Built once per partition; Jackson recycles its own parse buffers per thread.
+		final StructField[] fields = schema.fields();
+		final Map<String, Integer> positions = new HashMap<>(fields.length * 2);
+		for (int i = 0; i < fields.length; i++) {
+			positions.put(fields[i].name(), i);
+		}
+		return (value, values) -> decode(value, fields, positions, values);
+	}
+
+	@Override
+	protected String corruptRecord(byte[] value) {
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Decode one record into values. Missing fields stay null, unknown fields are skipped.
+	 */
+	public static void decode(byte[] value, StructField[] fields, Map<String, Integer> positions, Object[] values)
+			throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(value)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a JSON object");
+			}
+			String name;
+			while ((name = parser.nextFieldName()) != null) {
+				JsonToken token = parser.nextToken();
+				Integer position = positions.get(name);
+				if (position == null) {
+					parser.skipChildren();
+				} else {
+					values[position] = readValue(parser, token, fields[position].dataType());
+				}
+			}
+			if (parser.currentToken() != JsonToken.END_OBJECT) {
+				throw new IOException("Unterminated JSON object");
+			}
+		}
+	}
+
+	private static Object readValue(JsonParser parser, JsonToken token, DataType type) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+			throw new IOException("Nested value where " + type.simpleString() + " was expected");
+		}
+		if (DataTypes.StringType.equals(type)) {
+			return parser.getText();
+		}
+		if (DataTypes.BooleanType.equals(type)) {
+			if (!token.isBoolean()) {
+				throw new IOException("Expected a boolean, got " + token);
+			}
+			return parser.getBooleanValue();
+		}
+		if (!token.isNumeric()) {
+			throw new IOException("Expected a number, got " + token);
+		}
+		if (DataTypes.LongType.equals(type)) {
+			return parser.getLongValue();
+		}
+		if (DataTypes.IntegerType.equals(type)) {
+			return parser.getIntValue();
+		}
+		if (DataTypes.FloatType.equals(type)) {
+			return parser.getFloatValue();
+		}
+		return parser.getDoubleValue();
+	}
+
+	private static boolean isSupported(DataType type) {
+		return DataTypes.StringType.equals(type) || DataTypes.LongType.equals(type)
+				|| DataTypes.IntegerType.equals(type) || DataTypes.DoubleType.equals(type)
+				|| DataTypes.FloatType.equals(type) || DataTypes.BooleanType.equals(type);
+	}
+}
@@ -0,0 +1,378 @@
+package example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.api.java.function.VoidFunction2;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/*
+ * Reprocesses a bounded range of the Kafka topics as batch jobs, e.g. after an outage or a logic fix, before
+ * the live stream takes over.
+ *
+ * The range is given per partition as offsets (Spark's startingOffsets/endingOffsets JSON, earliest, latest)
+ * or timestamps (epoch milliseconds, "yyyy-mm-dd hh:mm:ss", or JSON per partition), and is resolved to
+ * offsets on the driver. It is read with Spark's batch Kafka source in slices of maxOffsetsPerBatch, each
+ * slice split into at least minPartitions tasks so that a large range keeps every core busy, and every slice
+ * goes through the same stage and sinks as a micro-batch. run() returns the end of the range as the
+ * startingOffsets of the live stream.
+ *
+ * The resolved range and the slices written are recorded in checkpointLocation: a failed backfill started
+ * again with the same checkpoint resumes with the next slice, and the range is not resolved again (delete
+ * the checkpoint to backfill another range). Every slice has a negative batch id derived from its offsets,
+ * so it never collides with a micro-batch id and a slice written again keeps its id, e.g. for the
+ * (BATCH_ID, key) merge of AdwBatchSink.
+ */
+public class KafkaBackfill {
+
+	private static final Logger log = LogManager.getLogger(KafkaBackfill.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String RANGE_FILE = "range.json";
+	private static final String DONE_DIR = "done";
+
+	private final SparkSession spark;
+	private final Map<String, String> sourceOptions;
+	private final List<String> topics;
+	private final String checkpointLocation;
+	private String startingOffsets = "earliest";
+	private String endingOffsets = "latest";
+	private String startingTimestamp;
+	private String endingTimestamp;
+	private int minPartitions;
+	private long maxOffsetsPerBatch;
+
+	/*
+	 * sourceOptions are the options of the Kafka source (the "kafka." ones also connect the consumer that
+	 * resolves the range).
+	 */
+	public KafkaBackfill(SparkSession spark, Map<String, String> sourceOptions, List<String> topics,
+						 String checkpointLocation) {
+		this.spark = spark;
+		this.sourceOptions = sourceOptions;
+		this.topics = topics;
+		this.checkpointLocation = checkpointLocation;
+		this.minPartitions = spark.sparkContext().defaultParallelism();
+	}
+
+	/*
+	 * earliest, latest or Spark's offsets JSON, e.g. {"organizations":{"0":1200,"1":-2}} (-2 earliest,
+	 * -1 latest). Partitions missing from a JSON range are not backfilled, the live stream starts them at
+	 * their latest offset.
+	 */
+	public KafkaBackfill withOffsets(String starting, String ending) {
+		this.startingOffsets = starting;
+		this.endingOffsets = ending;
+		return this;
+	}
+
+	/*
+	 * Start and/or end of the range as a record timestamp, taking precedence over the offsets; null keeps
+	 * the offsets. A partition without records at or after the timestamp is resolved to its latest offset.
+	 */
+	public KafkaBackfill withTimestamps(String starting, String ending) {
+		this.startingTimestamp = starting;
+		this.endingTimestamp = ending;
+		return this;
+	}
+
+	/*
+	 * Tasks per slice, the default parallelism by default; offset ranges are split to reach it.
+	 */
+	public KafkaBackfill withMinPartitions(int minPartitions) {
+		this.minPartitions = minPartitions;
+		return this;
+	}
+
+	/*
+	 * Offsets read and written at once, over all partitions (<= 0: the whole range in one slice).
+	 */
+	public KafkaBackfill withMaxOffsetsPerBatch(long maxOffsetsPerBatch) {
+		this.maxOffsetsPerBatch = maxOffsetsPerBatch;
+		return this;
+	}
+
+	/*
+	 * Reads every slice not written yet, applies stage (decode etc.) and hands it to sink with its batch id.
+	 * Returns the end offsets of the range as a startingOffsets JSON, see liveOffsets().
+	 */
+	public String run(FanOutSink.Stage stage, VoidFunction2<Dataset<Row>, Long> sink) throws Exception {
+		FileSystem fs = new Path(checkpointLocation).getFileSystem(spark.sparkContext().hadoopConfiguration());
+		Path rangeFile = new Path(checkpointLocation, RANGE_FILE);
+		Map<TopicPartition, long[]> range;
+		long batchSize;
+		String liveOffsets;
+		if (fs.exists(rangeFile)) {
+			JsonNode saved;
+			try (InputStream in = fs.open(rangeFile)) {
+				saved = MAPPER.readTree(in);
+			}
+			range = range(parseOffsets(saved.get("start").toString()), parseOffsets(saved.get("end").toString()));
+			batchSize = saved.get("maxOffsetsPerBatch").asLong();
+			liveOffsets = saved.has("live") ? saved.get("live").toString() : toJson(range, 1);
+			log.info("Resuming the backfill of " + checkpointLocation);
+		} else {
+			List<TopicPartition> partitions = new ArrayList<>();
+			range = resolve(partitions);
+			batchSize = maxOffsetsPerBatch;
+			liveOffsets = liveOffsets(range, partitions);
+			ObjectNode saved = MAPPER.createObjectNode();
+			saved.set("start", MAPPER.readTree(toJson(range, 0)));
+			saved.set("end", MAPPER.readTree(toJson(range, 1)));
+			saved.set("live", MAPPER.readTree(liveOffsets));
+			saved.put("maxOffsetsPerBatch", batchSize);
+			try (OutputStream out = fs.create(rangeFile, true)) {
+				out.write(MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(saved));
+			}
+		}
+
+		List<Map<TopicPartition, long[]>> slices = slices(range, batchSize);
+		log.info("Backfill of " + count(range) + " offsets " + toJson(range, 0) + " to " + toJson(range, 1) + " in "
+				+ slices.size() + " batches of " + minPartitions + "+ tasks");
+		for (int i = 0; i < slices.size(); i++) {
+			Map<TopicPartition, long[]> slice = slices.get(i);
+			Path done = new Path(new Path(checkpointLocation, DONE_DIR), String.valueOf(i));
+			if (slice.isEmpty() || fs.exists(done)) {
+				continue;
+			}
+			long batchId = batchId(slice);
+			long start = System.currentTimeMillis();
+			sink.call(stage.apply(read(slice)), batchId);
+			fs.create(done, true).close();
+			log.info("Backfill batch " + (i + 1) + "/" + slices.size() + " (id " + batchId + ", " + count(slice)
+					+ " offsets) written in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		return liveOffsets;
+	}
+
+	/*
+	 * Whether a streaming query has already checkpointed to location, so it resumes from there and not from
+	 * its startingOffsets.
+	 */
+	public static boolean hasCheckpoint(SparkSession spark, String location) throws IOException {
+		Path path = new Path(location);
+		FileSystem fs = path.getFileSystem(spark.sparkContext().hadoopConfiguration());
+		return fs.exists(path) && fs.listStatus(path).length > 0;
+	}
+
+	/*
+	 * One slice as a batch Kafka source: only its partitions, between its offsets.
+	 */
+	protected Dataset<Row> read(Map<TopicPartition, long[]> slice) {
+		Map<String, List<Integer>> assign = new TreeMap<>();
+		for (TopicPartition partition : slice.keySet()) {
+			assign.computeIfAbsent(partition.topic(), topic -> new ArrayList<>()).add(partition.partition());
+		}
+		try {
+			return spark.read()
+					.format("kafka")
+					.options(sourceOptions)
+					.option("assign", MAPPER.writeValueAsString(assign))
+					.option("startingOffsets", toJson(slice, 0))
+					.option("endingOffsets", toJson(slice, 1))
+					.option("minPartitions", minPartitions)
+					.load();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * [start, end) of every partition of the topics, with start and end within what the topic still has;
+	 * partitions receives all the partitions of the topics.
+	 */
+	private Map<TopicPartition, long[]> resolve(List<TopicPartition> partitions) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> option : sourceOptions.entrySet()) {
+			if (option.getKey().startsWith("kafka.")) {
+				properties.put(option.getKey().substring("kafka.".length()), option.getValue());
+			}
+		}
+		properties.put("key.deserializer", ByteArrayDeserializer.class.getName());
+		properties.put("value.deserializer", ByteArrayDeserializer.class.getName());
+		properties.put("enable.auto.commit", "false");
+		try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(properties)) {
+			for (String topic : topics) {
+				for (PartitionInfo info : consumer.partitionsFor(topic)) {
+					partitions.add(new TopicPartition(topic, info.partition()));
+				}
+			}
+			Map<TopicPartition, Long> earliest = consumer.beginningOffsets(partitions);
+			Map<TopicPartition, Long> latest = consumer.endOffsets(partitions);
+			Map<TopicPartition, Long> start = positions(consumer, startingTimestamp, startingOffsets, earliest, latest);
+			Map<TopicPartition, Long> end = positions(consumer, endingTimestamp, endingOffsets, earliest, latest);
+			Map<TopicPartition, Long> clampedStart = new LinkedHashMap<>();
+			Map<TopicPartition, Long> clampedEnd = new LinkedHashMap<>();
+			for (TopicPartition partition : partitions) {
+				if (start.containsKey(partition) && end.containsKey(partition)) {
+					long low = earliest.get(partition);
+					long high = latest.get(partition);
+					if (start.get(partition) < low) {
+						log.warn("Backfill of " + partition + " starts at " + low + ", the records from "
+								+ start.get(partition) + " have been deleted");
+					}
+					clampedStart.put(partition, Math.min(high, Math.max(low, start.get(partition))));
+					clampedEnd.put(partition, Math.min(high, Math.max(low, end.get(partition))));
+				}
+			}
+			return range(clampedStart, clampedEnd);
+		}
+	}
+
+	private static Map<TopicPartition, Long> positions(KafkaConsumer<byte[], byte[]> consumer, String timestamp,
+			String offsets, Map<TopicPartition, Long> earliest, Map<TopicPartition, Long> latest) throws IOException {
+		Map<TopicPartition, Long> positions = new LinkedHashMap<>();
+		if (timestamp != null) {
+			Map<TopicPartition, Long> times = new LinkedHashMap<>();
+			if (timestamp.trim().startsWith("{")) {
+				times.putAll(parseOffsets(timestamp));
+			} else {
+				long time = parseTimestamp(timestamp);
+				for (TopicPartition partition : earliest.keySet()) {
+					times.put(partition, time);
+				}
+			}
+			times.keySet().retainAll(earliest.keySet());
+			Map<TopicPartition, OffsetAndTimestamp> found = consumer.offsetsForTimes(times);
+			for (TopicPartition partition : times.keySet()) {
+				OffsetAndTimestamp offset = found.get(partition);
+				positions.put(partition, offset == null ? latest.get(partition) : offset.offset());
+			}
+		} else if ("earliest".equals(offsets)) {
+			positions.putAll(earliest);
+		} else if ("latest".equals(offsets)) {
+			positions.putAll(latest);
+		} else {
+			for (Map.Entry<TopicPartition, Long> offset : parseOffsets(offsets).entrySet()) {
+				TopicPartition partition = offset.getKey();
+				if (!earliest.containsKey(partition)) {
+					throw new IllegalArgumentException("Unknown partition " + partition + " in " + offsets);
+				}
+				long value = offset.getValue();
+				positions.put(partition, value == -2 ? earliest.get(partition) : value == -1 ? latest.get(partition) : value);
+			}
+		}
+		return positions;
+	}
+
+	private static long parseTimestamp(String timestamp) {
+		String value = timestamp.trim();
+		return value.matches("\\d+") ? Long.parseLong(value) : Timestamp.valueOf(value).getTime();
+	}
+
+	/*
+	 * Splits range into slices of about maxOffsets offsets, every partition advancing in step.
+	 */
+	static List<Map<TopicPartition, long[]>> slices(Map<TopicPartition, long[]> range, long maxOffsets) {
+		long total = count(range);
+		int count = maxOffsets <= 0 || total == 0 ? 1 : (int) ((total + maxOffsets - 1) / maxOffsets);
+		List<Map<TopicPartition, long[]>> slices = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Map<TopicPartition, long[]> slice = new LinkedHashMap<>();
+			for (Map.Entry<TopicPartition, long[]> partition : range.entrySet()) {
+				long start = partition.getValue()[0];
+				long length = partition.getValue()[1] - start;
+				long from = start + length * i / count;
+				long to = start + length * (i + 1) / count;
+				if (from < to) {
+					slice.put(partition.getKey(), new long[] { from, to });
+				}
+			}
+			slices.add(slice);
+		}
+		return slices;
+	}
+
+	/*
+	 * Negative and derived from the offsets of the slice only.
+	 */
+	static long batchId(Map<TopicPartition, long[]> slice) {
+		String offsets = toJson(slice, 0) + toJson(slice, 1);
+		return -1 - (UUID.nameUUIDFromBytes(offsets.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits() >>> 1);
+	}
+
+	static Map<TopicPartition, Long> parseOffsets(String json) throws IOException {
+		Map<TopicPartition, Long> offsets = new LinkedHashMap<>();
+		Iterator<Map.Entry<String, JsonNode>> topics = MAPPER.readTree(json).fields();
+		while (topics.hasNext()) {
+			Map.Entry<String, JsonNode> topic = topics.next();
+			Iterator<Map.Entry<String, JsonNode>> partitions = topic.getValue().fields();
+			while (partitions.hasNext()) {
+				Map.Entry<String, JsonNode> partition = partitions.next();
+				offsets.put(new TopicPartition(topic.getKey(), Integer.parseInt(partition.getKey())),
+						partition.getValue().asLong());
+			}
+		}
+		return offsets;
+	}
+
+	/*
+	 * Spark's offsets JSON of the start (index 0) or end (index 1) of every partition.
+	 */
+	static String toJson(Map<TopicPartition, long[]> range, int index) {
+		ObjectNode json = MAPPER.createObjectNode();
+		for (Map.Entry<TopicPartition, long[]> partition : range.entrySet()) {
+			ObjectNode topic = json.with(partition.getKey().topic());
+			topic.put(String.valueOf(partition.getKey().partition()), partition.getValue()[index]);
+		}
+		return json.toString();
+	}
+
+	/*
+	 * The end of range as the startingOffsets of the live stream. It subscribes to every partition of the
+	 * topics and Spark rejects offsets that leave some out: partitions not backfilled start at the latest
+	 * offset (-1).
+	 */
+	static String liveOffsets(Map<TopicPartition, long[]> range, List<TopicPartition> partitions) {
+		Map<TopicPartition, long[]> live = new LinkedHashMap<>(range);
+		for (TopicPartition partition : partitions) {
+			live.putIfAbsent(partition, new long[] {-1, -1});
+		}
+		return toJson(live, 1);
+	}
+
+	private static Map<TopicPartition, long[]> range(Map<TopicPartition, Long> start, Map<TopicPartition, Long> end) {
+		Map<TopicPartition, long[]> range = new LinkedHashMap<>();
+		for (Map.Entry<TopicPartition, Long> partition : start.entrySet()) {
+			Long to = end.get(partition.getKey());
+			if (to != null) {
+				range.put(partition.getKey(), new long[] { partition.getValue(), Math.max(partition.getValue(), to) });
+			}
+		}
+		return range;
+	}
+
+	private static long count(Map<TopicPartition, long[]> range) {
+		long count = 0;
+		for (long[] offsets : range.values()) {
+			count += offsets[1] - offsets[0];
+		}
+		return count;
+	}
+}
@@ -0,0 +1,115 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.streaming.DataStreamWriter;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.struct;
+import static org.apache.spark.sql.functions.to_json;
+
+/*
+ * Publishes every micro-batch to a Kafka (OCI Streaming) topic, one message per row.
+ *
+ * Rows are serialized as compact JSON objects or as Avro binary records (see AvroRowSerializer). With a key
+ * column, all the messages of a key go to the same partition and keep their order. Producer settings such
+ * as linger.ms, batch.size, compression.type and enable.idempotence are passed to the Kafka producer as is;
+ * Spark caches one producer per executor and settings, so the batching spans micro-batches.
+ *
+ * Delivery is at least once: a retried micro-batch (or continuous epoch) is published again.
+ */
+public class KafkaBatchSink implements ContinuousSink {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(KafkaBatchSink.class);
+
+	private final String name;
+	private final String topic;
+	private final Map<String, String> options = new HashMap<>();
+	private final String format;
+	private String keyColumn;
+	private transient boolean schemaLogged;
+
+	/*
+	 * connectionOptions are "kafka." prefixed options, e.g. KafkaConnection.options(); format is json or avro.
+	 */
+	public KafkaBatchSink(String name, String topic, Map<String, String> connectionOptions, String format) {
+		if (!"json".equals(format) && !"avro".equals(format)) {
+			throw new IllegalArgumentException("Unsupported Kafka message format " + format + ", use json or avro");
+		}
+		this.name = name;
+		this.topic = topic;
+		this.options.putAll(connectionOptions);
+		this.format = format;
+	}
+
+	/*
+	 * Kafka producer settings, without the "kafka." prefix, e.g. linger.ms=20.
+	 */
+	public KafkaBatchSink withProducerOptions(Map<String, String> producerOptions) {
+		for (Map.Entry<String, String> option : producerOptions.entrySet()) {
+			options.put("kafka." + option.getKey(), option.getValue());
+		}
+		return this;
+	}
+
+	/*
+	 * Column used as the message key, may be null for round-robin partitioning.
+	 */
+	public KafkaBatchSink withKeyColumn(String keyColumn) {
+		this.keyColumn = keyColumn;
+		return this;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void write(Dataset<Row> batch, long batchId) {
+		messages(batch).write()
+				.format("kafka")
+				.options(options)
+				.option("topic", topic)
+				.save();
+	}
+
+	@Override
+	public DataStreamWriter<Row> writeStream(Dataset<Row> rows) {
+		return messages(rows).writeStream()
+				.format("kafka")
+				.options(options)
+				.option("topic", topic);
+	}
+
+	/*
+	 * key (when there is a key column) and value of the message of every row.
+	 */
+	private Dataset<Row> messages(Dataset<Row> rows) {
+		if ("avro".equals(format)) {
+			AvroRowSerializer serializer = new AvroRowSerializer(rows.schema(), "Record", "example")
+					.withKey(keyColumn);
+			if (!schemaLogged) {
+				log.info(name + " Avro schema: " + serializer.getSchema());
+				schemaLogged = true;
+			}
+			return serializer.serialize(rows);
+		}
+		List<Column> columns = new ArrayList<>();
+		if (keyColumn != null) {
+			columns.add(col(keyColumn).cast("string").as("key"));
+		}
+		columns.add(to_json(struct(col("*"))).as("value"));
+		return rows.select(columns.toArray(new Column[0]));
+	}
+}
@@ -0,0 +1,26 @@
+package example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Options to connect to OCI Streaming through its Kafka API, shared by the source, the Kafka sink and the
+ * lag metrics: bootstrap servers and SASL_SSL/PLAIN with the auth token of kafka.username.
+ *
+ * Keys carry the "kafka." prefix of Spark's Kafka source and sink options.
+ */
+public class KafkaConnection {
+
+	private static final String JAAS_TEMPLATE =
+			"org.apache.kafka.common.security.plain.PlainLoginModule required username=\"%s\" password=\"%s\";";
+
+	public static Map<String, String> options(PipelineConfig config) {
+		String username = config.get("kafka.username") + "/" + config.get("kafka.streamPoolId");
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("kafka.bootstrap.servers", config.get("kafka.bootstrap.servers"));
+		options.put("kafka.security.protocol", "SASL_SSL");
+		options.put("kafka.sasl.mechanism", "PLAIN");
+		options.put("kafka.sasl.jaas.config", String.format(JAAS_TEMPLATE, username, config.get("kafka.password")));
+		return options;
+	}
+}
@@ -0,0 +1,130 @@
+package example;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.floor;
+import static org.apache.spark.sql.functions.lit;
+
+/*
+ * Sink for load tests: measures the end to end latency of every record, from the time it was generated
+ * (a column with epoch milliseconds, see LoadGenerator) to the time its micro-batch is written.
+ *
+ * Latencies are counted per bucket of bucketMs on the executors and only the counts are collected, so the
+ * report costs one small aggregation per micro-batch at any rate. The driver merges the counts into the
+ * percentiles of the whole run and the sustained rate (rows / time between the first and last write).
+ */
+public class LatencyReportSink implements BatchSink {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LogManager.getLogger(LatencyReportSink.class);
+
+	private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+
+	private final String name;
+	private final String sentColumn;
+	private final long bucketMs;
+	private final TreeMap<Long, Long> buckets = new TreeMap<>();
+	private long rows;
+	private long firstWriteMs;
+	private long lastWriteMs;
+	private long maxLatencyMs;
+
+	public LatencyReportSink(String name, String sentColumn, long bucketMs) {
+		this.name = name;
+		this.sentColumn = sentColumn;
+		this.bucketMs = Math.max(1, bucketMs);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void write(Dataset<Row> batch, long batchId) {
+		long now = System.currentTimeMillis();
+		List<Row> counts = batch
+				.select(floor(lit(now).minus(col(sentColumn)).divide(bucketMs)).as("bucket"))
+				.groupBy("bucket").count()
+				.collectAsList();
+		TreeMap<Long, Long> batchBuckets = new TreeMap<>();
+		for (Row count : counts) {
+			if (!count.isNullAt(0)) {
+				batchBuckets.merge(Math.max(0, count.getLong(0)), count.getLong(1), Long::sum);
+			}
+		}
+		long batchRows = total(batchBuckets);
+		synchronized (this) {
+			if (batchRows > 0) {
+				if (rows == 0) {
+					firstWriteMs = now;
+				}
+				lastWriteMs = now;
+				rows += batchRows;
+				batchBuckets.forEach((bucket, count) -> buckets.merge(bucket, count, Long::sum));
+				maxLatencyMs = Math.max(maxLatencyMs, (batchBuckets.lastKey() + 1) * bucketMs);
+			}
+		}
+		log.info("Batch " + batchId + ": " + batchRows + " rows, latency " + percentiles(batchBuckets));
+	}
+
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	/*
+	 * Rows per second between the first and the last micro-batch written.
+	 */
+	public synchronized double getRowsPerSecond() {
+		return lastWriteMs > firstWriteMs ? rows * 1000.0 / (lastWriteMs - firstWriteMs) : 0;
+	}
+
+	/*
+	 * Upper bound of the latency of the fraction p of the rows, in milliseconds (with bucketMs precision).
+	 */
+	public synchronized long getLatencyMs(double p) {
+		return percentile(buckets, p);
+	}
+
+	public synchronized String report() {
+		return name + ": " + rows + " rows, " + Math.round(getRowsPerSecond()) + " rows/s sustained, latency "
+				+ percentiles(buckets) + " max=" + maxLatencyMs + "ms";
+	}
+
+	private String percentiles(TreeMap<Long, Long> counts) {
+		StringBuilder result = new StringBuilder();
+		for (double p : PERCENTILES) {
+			result.append("p").append(Math.round(p * 100)).append('=').append(percentile(counts, p)).append("ms ");
+		}
+		return result.toString().trim();
+	}
+
+	private long percentile(TreeMap<Long, Long> counts, double p) {
+		long rank = (long) Math.ceil(total(counts) * p);
+		long seen = 0;
+		for (Map.Entry<Long, Long> count : counts.entrySet()) {
+			seen += count.getValue();
+			if (seen >= rank) {
+				return (count.getKey() + 1) * bucketMs;
+			}
+		}
+		return 0;
+	}
+
+	private static long total(TreeMap<Long, Long> counts) {
+		long total = 0;
+		for (long count : counts.values()) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,114 @@
+package example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.struct;
+import static org.apache.spark.sql.functions.to_json;
+
+/*
+ * Stand-in for the Kafka source in load tests: replays the rows of a CSV file (organizations.csv) as JSON
+ * messages, at a fixed rate, through Spark's rate source.
+ *
+ * The output has the binary "value" and "timestamp" columns of the Kafka source, so it is decoded by
+ * JsonValueDecoder as is. Every message also carries the time it was generated in SENT_FIELD (epoch milliseconds), to measure
+ * the end to end latency at the sinks.
+ *
+ * With a key column, every replay of the file gets keys of its own ("<key>-<replay>"), so the deduplication of
+ * the pipeline passes the messages on instead of dropping all but the first replay.
+ */
+public class LoadGenerator implements MapFunction<Row, Row> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String SENT_FIELD = "sentMs";
+
+	// JSON objects without their closing brace, the sent time is appended per message.
+	private final String[] messages;
+	// Per message, the position of the quote closing the key value, or null without a key column.
+	private final int[] keyEnds;
+
+	public LoadGenerator(String[] messages, int[] keyEnds) {
+		this.messages = messages;
+		this.keyEnds = keyEnds;
+	}
+
+	/*
+	 * Messages made of the columns of a CSV file with a header line, with keys made unique per replay in
+	 * keyColumn (null for none).
+	 */
+	public static LoadGenerator fromCsv(SparkSession spark, String path, String keyColumn) throws IOException {
+		Dataset<Row> csv = spark.read().option("header", "true").option("inferSchema", "true").csv(path);
+		List<Column> columns = new ArrayList<>();
+		Column key = keyColumn == null ? null : col("`" + keyColumn + "`").cast(DataTypes.StringType).as(keyColumn);
+		if (key != null) {
+			// The key first, as a string: its value ends where the JSON of the key alone does.
+			columns.add(key);
+		}
+		for (String column : csv.columns()) {
+			if (!column.equals(keyColumn)) {
+				columns.add(col("`" + column + "`"));
+			}
+		}
+		List<Row> json = csv.select(to_json(struct(columns.toArray(new Column[0]))),
+				key == null ? lit(null) : to_json(struct(key)))
+				.collectAsList();
+		if (json.isEmpty()) {
+			throw new IOException("No rows in " + path);
+		}
+		String[] messages = new String[json.size()];
+		int[] keyEnds = keyColumn == null ? null : new int[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			String message = json.get(i).getString(0);
+			messages[i] = message.substring(0, message.lastIndexOf('}'));
+			if (keyEnds != null) {
+				String keyJson = json.get(i).getString(1);
+				if (!keyJson.endsWith("\"}")) {
+					throw new IOException("No " + keyColumn + " in row " + (i + 1) + " of " + path);
+				}
+				keyEnds[i] = keyJson.length() - 2;
+			}
+		}
+		return new LoadGenerator(messages, keyEnds);
+	}
+
+	/*
+	 * Unbounded stream of messages, rowsPerSecond in total over numPartitions partitions.
+	 */
+	public Dataset<Row> generate(SparkSession spark, long rowsPerSecond, int numPartitions) {
+		Dataset<Row> rate = spark.readStream().format("rate")
+				.option("rowsPerSecond", rowsPerSecond)
+				.option("numPartitions", numPartitions)
+				.load();
+		return rate.map(this, RowEncoder.apply(new StructType()
+				.add("value", DataTypes.BinaryType)
+				.add("timestamp", DataTypes.TimestampType)));
+	}
+
+	@Override
+	public Row call(Row rate) {
+		int index = (int) (rate.getLong(1) % messages.length);
+		String message = messages[index];
+		if (keyEnds != null) {
+			message = message.substring(0, keyEnds[index]) + "-" + rate.getLong(1) / messages.length
+					+ message.substring(keyEnds[index]);
+		}
+		String json = message + (message.endsWith("{") ? "" : ",") + "\"" + SENT_FIELD + "\":"
+				+ rate.getTimestamp(0).getTime() + "}";
+		return RowFactory.create(json.getBytes(StandardCharsets.UTF_8), rate.getTimestamp(0));
+	}
+}
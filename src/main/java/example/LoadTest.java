@@ -0,0 +1,130 @@
+package example;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.execution.streaming.ProcessingTimeTrigger;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.Trigger;
+
+/*
+ * Local end to end throughput test of the pipeline, without OCI Streaming, ADW or Vault.
+ *
+ * Runs the pipeline of Example (decoding, deduplication, enrichment, enrich query, FanOutSink) with only the
+ * source and the sinks swapped: LoadGenerator replays organizations.csv as Kafka-like JSON messages at
+ * loadtest.rowsPerSecond, and the GDP dimension is read from GDP_PER_CAPTA_COUNTRY.csv. A LatencyReportSink
+ * measures the latency of every record and, after loadtest.durationSeconds, the sustained rows/sec and the
+ * latency percentiles are printed.
+ *
+ * Every loadtest.<key> replaces <key> of the pipeline configuration, e.g. loadtest.sink.types for extra sinks
+ * (not adw) or loadtest.trigger.interval.
+ *
+ * Usage: LoadTest [pipeline.properties] [key=value ...], e.g. loadtest.rowsPerSecond=50000
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+
+		Logger log = LogManager.getLogger(LoadTest.class);
+
+		PipelineConfig config = PipelineConfig.load(args).withOverrides("loadtest.");
+
+		SparkSession.Builder builder = SparkSession.builder().appName(config.get("app.name") + "-loadtest")
+				.master(config.get("loadtest.master", "local[*]"));
+		for (Map.Entry<String, String> x : DataFlowSparkSession.withProfile(config.get("session.profile", null),
+				config.getSparkConf()).entrySet()) {
+			builder.config(x.getKey(), x.getValue());
+		}
+		StateStores.configure(builder, config);
+		SparkSession spark = builder.getOrCreate();
+
+		// The generator produces rowsPerSecond, the shuffle partitions are sized for the rows of a trigger as for
+		// a topic read with kafka.maxOffsetsPerTrigger.
+		long rowsPerSecond = config.getLong("loadtest.rowsPerSecond", 10000);
+		long triggerIntervalMs = ((ProcessingTimeTrigger) Trigger.ProcessingTime(config.get("trigger.interval"))).intervalMs();
+		config = config.with("kafka.maxOffsetsPerTrigger", String.valueOf(rowsPerSecond * triggerIntervalMs / 1000))
+				.with("decode.format", "json")
+				.with("decode.schema", config.get("decode.schema") + ", " + LoadGenerator.SENT_FIELD + " BIGINT");
+		if (!config.has("sink.checkpointLocation")) {
+			config = config.with("sink.checkpointLocation", Files.createTempDirectory("loadtest-checkpoint").toString());
+		}
+		PipelineConfig pipelineConfig = config;
+
+		PipelineMetrics metrics = new PipelineMetrics().register(spark);
+		if (config.getInt("metrics.prometheus.port", 0) > 0) {
+			metrics.startHttpServer(config.getInt("metrics.prometheus.port", 0));
+		}
+
+		// ADW stand-in: the dimension columns read from a CSV file.
+		String dimensionFile = config.get("loadtest.dimensionFile");
+		List<String> enrichColumns = config.getList("enrich.columns");
+		DimensionCache.Loader dimension = () -> {
+			Dataset<Row> table = spark.read().option("header", "true").option("inferSchema", "true").csv(dimensionFile);
+			return enrichColumns.isEmpty() ? table : table.selectExpr(enrichColumns.toArray(new String[0]));
+		};
+		DimensionCache gdpCache = null;
+		SkewAwareJoin gdpJoin = null;
+		if ("join".equals(config.get("enrich.mode", "broadcast"))) {
+			gdpJoin = new SkewAwareJoin(dimension, config.get("enrich.key"), 0)
+					.withHotKeys(Double.parseDouble(config.get("enrich.skew.hotKeyFraction", "0.05")),
+							config.getInt("enrich.skew.maxHotKeys", 20));
+		} else {
+			gdpCache = new DimensionCache(spark, dimension, config.get("enrich.key"), 0, null);
+			log.info(dimensionFile + " rows cached=" + gdpCache.size());
+		}
+
+		// The decoder of Example, without the Object Storage credentials: the schema is inline.
+		ValueDecoder decoder = ValueDecoders.fromConfig(config, new Configuration(spark.sparkContext().hadoopConfiguration()))
+				.withTimestamp(config.get("decode.timestampColumn", "timestamp"))
+				.withErrorCounter(metrics.getDecodeErrors());
+
+		// Kafka stand-in: the source file replayed as JSON values, stamped with the time they were generated.
+		LoadGenerator generator = LoadGenerator.fromCsv(spark, config.get("loadtest.sourceFile"), config.get("dedup.key", null));
+		int numPartitions = config.getInt("loadtest.numPartitions", 4);
+
+		LatencyReportSink latency = new LatencyReportSink("loadtest.latency", LoadGenerator.SENT_FIELD,
+				config.getLong("loadtest.latencyBucketMs", 10));
+		Example.Pipeline pipeline = new Example.Pipeline(null, pipelineConfig, CompletableFuture.completedFuture(spark),
+				CompletableFuture.completedFuture(metrics), CompletableFuture.completedFuture(decoder),
+				CompletableFuture.completedFuture(gdpCache), gdpJoin)
+				.withSource(session -> generator.generate(session, rowsPerSecond, numPartitions))
+				.withSinks(Collections.singletonList(latency));
+
+		long durationSeconds = config.getLong("loadtest.durationSeconds", 120);
+		log.info("Load test: " + rowsPerSecond + " rows/s for " + durationSeconds + " s");
+		pipeline.thread = new Thread(() -> {
+			try {
+				pipeline.run(null, null);
+			} catch (Exception e) {
+				pipeline.failure = e;
+			}
+		}, "pipeline-loadtest");
+		pipeline.thread.start();
+		pipeline.thread.join(durationSeconds * 1000);
+		// Stopping the queries ends the run of the pipeline, also one started late or restarted meanwhile.
+		while (pipeline.thread.isAlive()) {
+			for (StreamingQuery query : spark.streams().active()) {
+				query.stop();
+			}
+			pipeline.thread.join(1000);
+		}
+
+		System.out.println(latency.report());
+		System.out.println("decode errors=" + metrics.getDecodeErrors().value() + " duplicates="
+				+ metrics.getDuplicates().value() + " enrich hits=" + metrics.getEnrichHits().value()
+				+ " misses=" + metrics.getEnrichMisses().value());
+		spark.stop();
+		if (pipeline.failure != null) {
+			throw pipeline.failure;
+		}
+	}
+}
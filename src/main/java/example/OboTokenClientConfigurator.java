@@ -14,9 +14,17 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.SparkConf;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Priority;
 import javax.ws.rs.Priorities;
 import javax.ws.rs.client.Client;
@@ -35,6 +43,9 @@ public class OboTokenClientConfigurator implements ClientConfigurator {
     private static final String CONFIG_FILE_PATH = ConfigFileReader.DEFAULT_FILE_PATH;
     private static final String CANONICAL_REGION_NAME = Region.US_ASHBURN_1.getRegionId();
 
+    // One cache per token file, shared by every client and filter of the JVM.
+    private static final Map<String, DelegationTokenCache> TOKEN_CACHES = new ConcurrentHashMap<>();
+
     private final String delegationTokenPath;
 
     /**
@@ -115,6 +126,24 @@ public class OboTokenClientConfigurator implements ClientConfigurator {
         this.delegationTokenPath = delegationTokenPath;
     }
 
+    /**
+     * Number of requests served from the cached token.
+     */
+    public long getTokenCacheHits() {
+        return tokenCache().getHits();
+    }
+
+    /**
+     * Number of times the token file was read.
+     */
+    public long getTokenReloads() {
+        return tokenCache().getReloads();
+    }
+
+    private DelegationTokenCache tokenCache() {
+        return TOKEN_CACHES.computeIfAbsent(delegationTokenPath, DelegationTokenCache::new);
+    }
+
     @Override
     public void customizeBuilder(ClientBuilder builder) {
     }
@@ -131,8 +160,89 @@ public class OboTokenClientConfigurator implements ClientConfigurator {
 
         @Override
         public void filter(final ClientRequestContext requestContext) throws IOException {
-            String token = new String(Files.readAllBytes(Paths.get(delegationTokenPath)));
-            requestContext.getHeaders().putSingle(Constants.OPC_OBO_TOKEN, token);
+            requestContext.getHeaders().putSingle(Constants.OPC_OBO_TOKEN, tokenCache().get());
+        }
+    }
+
+    /**
+     * In memory copy of the delegation token file.
+     *
+     * The file is stat'ed at most once per {@link #CHECK_INTERVAL_NANOS} and only read again when its
+     * modification time or size changed. A single request performs the check; concurrent requests keep using
+     * the current token instead of waiting for it. Only the very first load blocks.
+     */
+    static final class DelegationTokenCache {
+
+        static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private static final class Snapshot {
+            final String token;
+            final long modifiedMillis;
+            final long size;
+            final long checkedNanos;
+
+            Snapshot(String token, long modifiedMillis, long size, long checkedNanos) {
+                this.token = token;
+                this.modifiedMillis = modifiedMillis;
+                this.size = size;
+                this.checkedNanos = checkedNanos;
+            }
+        }
+
+        private final Path path;
+        private final AtomicBoolean checking = new AtomicBoolean();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong reloads = new AtomicLong();
+        private volatile Snapshot snapshot;
+
+        DelegationTokenCache(String path) {
+            this.path = Paths.get(path);
+        }
+
+        String get() throws IOException {
+            Snapshot current = snapshot;
+            if (current == null) {
+                synchronized (this) {
+                    if (snapshot == null) {
+                        snapshot = load(System.nanoTime());
+                    }
+                    return snapshot.token;
+                }
+            }
+            long now = System.nanoTime();
+            if (now - current.checkedNanos < CHECK_INTERVAL_NANOS || !checking.compareAndSet(false, true)) {
+                hits.incrementAndGet();
+                return current.token;
+            }
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.lastModifiedTime().toMillis() == current.modifiedMillis
+                        && attributes.size() == current.size) {
+                    hits.incrementAndGet();
+                    snapshot = new Snapshot(current.token, current.modifiedMillis, current.size, now);
+                } else {
+                    snapshot = load(now);
+                }
+                return snapshot.token;
+            } finally {
+                checking.set(false);
+            }
+        }
+
+        private Snapshot load(long now) throws IOException {
+            // Stat before reading: if the file changes in between, the next check sees a newer time and reloads.
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String token = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            reloads.incrementAndGet();
+            return new Snapshot(token, attributes.lastModifiedTime().toMillis(), attributes.size(), now);
+        }
+
+        long getHits() {
+            return hits.get();
+        }
+
+        long getReloads() {
+            return reloads.get();
         }
     }
 }
\ No newline at end of file
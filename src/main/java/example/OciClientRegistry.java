@@ -0,0 +1,107 @@
+package example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.Region;
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.hdfs.BmcFilesystem;
+import com.oracle.bmc.secrets.SecretsClient;
+
+/*
+ * Shared OCI clients for the driver.
+ *
+ * Every client owns an HTTP client, an authentication provider and a connection pool, so building one per
+ * helper call means a new TLS handshake per call. Clients are kept per (URI authority, auth mode, region)
+ * and are thread safe; callers must not close them. Everything is closed on JVM shutdown, or by closeAll().
+ */
+public class OciClientRegistry {
+
+	private static final Logger log = LogManager.getLogger(OciClientRegistry.class);
+
+	// Honoured by the connector versions that use the Apache HTTP client; harmless otherwise.
+	public static final String MAX_CONNECTIONS_PROPERTY = "fs.oci.client.apache.max.connection.pool.size";
+	public static final int DEFAULT_MAX_CONNECTIONS = 50;
+	public static final int CONNECTION_TIMEOUT_MILLIS = 10000;
+	public static final int READ_TIMEOUT_MILLIS = 60000;
+
+	private static final Map<String, BmcFilesystem> filesystems = new ConcurrentHashMap<>();
+	private static final Map<String, SecretsClient> secretsClients = new ConcurrentHashMap<>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(OciClientRegistry::closeAll, "oci-client-registry"));
+	}
+
+	/*
+	 * Shared BmcFilesystem for the bucket of uri, initialized with config on first use.
+	 */
+	public static BmcFilesystem getFilesystem(URI uri, Configuration config) throws IOException {
+		String key = uri.getScheme() + "://" + uri.getAuthority() + "|" + authMode(config) + "|"
+				+ config.get("fs.oci.client.hostname", "");
+		BmcFilesystem fs = filesystems.get(key);
+		if (fs == null) {
+			synchronized (filesystems) {
+				fs = filesystems.get(key);
+				if (fs == null) {
+					Configuration tuned = new Configuration(config);
+					if (tuned.get(MAX_CONNECTIONS_PROPERTY) == null) {
+						tuned.setInt(MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS);
+					}
+					fs = new BmcFilesystem();
+					fs.initialize(URI.create(uri.getScheme() + "://" + uri.getAuthority()), tuned);
+					filesystems.put(key, fs);
+				}
+			}
+		}
+		return fs;
+	}
+
+	/*
+	 * Shared Vault secrets client for provider in region. Providers refresh their own credentials, so the
+	 * provider instance (not its current key id) identifies the auth mode.
+	 */
+	public static SecretsClient getSecretsClient(BasicAuthenticationDetailsProvider provider, Region region) {
+		String key = provider.getClass().getName() + "@" + System.identityHashCode(provider) + "|"
+				+ region.getRegionId();
+		return secretsClients.computeIfAbsent(key, k -> {
+			ClientConfiguration configuration = ClientConfiguration.builder()
+					.connectionTimeoutMillis(CONNECTION_TIMEOUT_MILLIS)
+					.readTimeoutMillis(READ_TIMEOUT_MILLIS)
+					.build();
+			SecretsClient client = new SecretsClient(provider, configuration);
+			client.setRegion(region);
+			return client;
+		});
+	}
+
+	public static synchronized void closeAll() {
+		for (BmcFilesystem fs : filesystems.values()) {
+			try {
+				fs.close();
+			} catch (IOException e) {
+				log.warn("Failed to close " + fs.getUri(), e);
+			}
+		}
+		filesystems.clear();
+		for (SecretsClient client : secretsClients.values()) {
+			client.close();
+		}
+		secretsClients.clear();
+	}
+
+	private static String authMode(Configuration config) {
+		String delegationTokenPath = config.get("fs.oci.client.auth.delegationTokenPath");
+		if (delegationTokenPath != null) {
+			return "obo:" + delegationTokenPath;
+		}
+		return "apikey:" + config.get("fs.oci.client.auth.userId", "") + "/"
+				+ config.get("fs.oci.client.auth.fingerprint", "");
+	}
+}
@@ -0,0 +1,213 @@
+package example;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.spark.sql.types.StructType;
+
+/*
+ * Pipeline definition: sources, decode schema, enrichment, sinks, triggers and Spark settings.
+ *
+ * Values come from the bundled pipeline.properties, overlaid by an optional properties file and then by
+ * key=value command line arguments, so a deployment can be tuned without rebuilding the jar:
+ *
+ *   Example [/path/to/pipeline.properties] [key=value ...]
+ *
+ * Keys starting with "spark." are applied to the SparkSession as is.
+ *
+ * A host running several pipelines lists them in "pipelines"; keys under pipeline.<name>. apply to that
+ * pipeline only, see forPipeline().
+ */
+public class PipelineConfig implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String DEFAULTS_RESOURCE = "pipeline.properties";
+	public static final String PIPELINE_PREFIX = "pipeline.";
+
+	private final Map<String, String> values;
+
+	public PipelineConfig(Map<String, String> values) {
+		this.values = Collections.unmodifiableMap(new TreeMap<>(values));
+	}
+
+	public static PipelineConfig load(String[] args) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = PipelineConfig.class.getClassLoader().getResourceAsStream(DEFAULTS_RESOURCE)) {
+			if (in != null) {
+				properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+			}
+		}
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator > 0) {
+				properties.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+			} else {
+				try (Reader reader = new InputStreamReader(new FileInputStream(arg), StandardCharsets.UTF_8)) {
+					Properties file = new Properties();
+					file.load(reader);
+					properties.putAll(file);
+				}
+			}
+		}
+		Map<String, String> values = new TreeMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			values.put(key, properties.getProperty(key).trim());
+		}
+		return new PipelineConfig(values);
+	}
+
+	/*
+	 * Configuration of one of the pipelines of a host (see "pipelines"): these values with the
+	 * pipeline.<name>.* keys on top, without the prefix. Checkpoint locations the pipeline does not set get a
+	 * subdirectory named after it, and the metrics HTTP port and file are not inherited, so pipelines never
+	 * share them.
+	 */
+	public PipelineConfig forPipeline(String name) {
+		// The name ends up in paths, metric names and the scheduler pool
+		if (!name.matches("[A-Za-z0-9_-]+")) {
+			throw new IllegalArgumentException("Pipeline names are letters, digits, '_' and '-': " + name);
+		}
+		Map<String, String> overrides = getSubset(PIPELINE_PREFIX + name + ".");
+		Map<String, String> pipeline = new TreeMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (entry.getKey().startsWith(PIPELINE_PREFIX)) {
+				continue;
+			}
+			String value = entry.getValue();
+			if (entry.getKey().endsWith("checkpointLocation") && !value.isEmpty()) {
+				value = (value.endsWith("/") ? value : value + "/") + name + "/";
+			} else if (entry.getKey().equals("metrics.prometheus.port") || entry.getKey().equals("metrics.prometheus.file")) {
+				value = "";
+			}
+			pipeline.put(entry.getKey(), value);
+		}
+		pipeline.putAll(overrides);
+		return new PipelineConfig(pipeline);
+	}
+
+	/*
+	 * These values with the keys under prefix on top, without the prefix, e.g. loadtest.sink.types in place of
+	 * sink.types for LoadTest.
+	 */
+	public PipelineConfig withOverrides(String prefix) {
+		Map<String, String> overridden = new TreeMap<>(values);
+		overridden.putAll(getSubset(prefix));
+		return new PipelineConfig(overridden);
+	}
+
+	/*
+	 * These values with value set for key.
+	 */
+	public PipelineConfig with(String key, String value) {
+		Map<String, String> changed = new TreeMap<>(values);
+		changed.put(key, value);
+		return new PipelineConfig(changed);
+	}
+
+	public boolean has(String key) {
+		String value = values.get(key);
+		return value != null && !value.isEmpty();
+	}
+
+	public String get(String key) {
+		if (!has(key)) {
+			throw new IllegalArgumentException("Missing pipeline configuration " + key);
+		}
+		return values.get(key);
+	}
+
+	public String get(String key, String defaultValue) {
+		return has(key) ? values.get(key) : defaultValue;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		return has(key) ? Integer.parseInt(values.get(key)) : defaultValue;
+	}
+
+	public long getLong(String key, long defaultValue) {
+		return has(key) ? Long.parseLong(values.get(key)) : defaultValue;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		return has(key) ? Boolean.parseBoolean(values.get(key)) : defaultValue;
+	}
+
+	/*
+	 * Comma separated list, empty if the key is not set.
+	 */
+	public List<String> getList(String key) {
+		return getList(key, ",");
+	}
+
+	/*
+	 * List separated by separator (a literal string), for items that contain commas such as SQL expressions.
+	 */
+	public List<String> getList(String key, String separator) {
+		List<String> list = new ArrayList<>();
+		if (has(key)) {
+			for (String item : values.get(key).split(Pattern.quote(separator))) {
+				if (!item.trim().isEmpty()) {
+					list.add(item.trim());
+				}
+			}
+		}
+		return list;
+	}
+
+	/*
+	 * Schema given as a DDL string, e.g. "`Organization Id` STRING, Name STRING".
+	 */
+	public StructType getSchema(String key) {
+		return StructType.fromDDL(get(key));
+	}
+
+	/*
+	 * All entries under prefix, with the prefix removed from the keys.
+	 */
+	public Map<String, String> getSubset(String prefix) {
+		Map<String, String> subset = new TreeMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				subset.put(entry.getKey().substring(prefix.length()), entry.getValue());
+			}
+		}
+		return subset;
+	}
+
+	/*
+	 * Settings for the SparkSession builder, i.e. every "spark." key.
+	 */
+	public Map<String, String> getSparkConf() {
+		Map<String, String> conf = new TreeMap<>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			if (entry.getKey().startsWith("spark.")) {
+				conf.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return conf;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String key = entry.getKey().toLowerCase();
+			boolean secret = key.contains("password") || key.contains("token");
+			sb.append(entry.getKey()).append('=').append(secret ? "****" : entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+}
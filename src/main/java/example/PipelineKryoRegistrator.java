@@ -0,0 +1,59 @@
+package example;
+
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema;
+import org.apache.spark.sql.catalyst.expressions.UnsafeRow;
+import org.apache.spark.sql.types.Metadata;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.esotericsoftware.kryo.Kryo;
+
+/*
+ * Registers the classes the pipeline ships through Kryo, so they are written as a class id instead of the
+ * class name: the rows of the broadcast dimension (a HashMap of key -> GenericRowWithSchema, see
+ * DimensionCache) with their schema, and the values of the decoded and enriched columns.
+ *
+ * Classes left out still serialize, spark.kryo.registrationRequired stays false.
+ */
+public class PipelineKryoRegistrator implements KryoRegistrator {
+
+	private static final String[] SCALA_TYPES = {
+			"org.apache.spark.sql.types.StringType$",
+			"org.apache.spark.sql.types.LongType$",
+			"org.apache.spark.sql.types.IntegerType$",
+			"org.apache.spark.sql.types.DoubleType$",
+			"org.apache.spark.sql.types.BooleanType$",
+			"org.apache.spark.sql.types.TimestampType$",
+			"org.apache.spark.sql.types.BinaryType$",
+			"org.apache.spark.sql.types.DecimalType",
+	};
+
+	@Override
+	public void registerClasses(Kryo kryo) {
+		kryo.register(java.util.HashMap.class);
+		kryo.register(java.util.ArrayList.class);
+		kryo.register(GenericRow.class);
+		kryo.register(GenericRowWithSchema.class);
+		kryo.register(GenericRowWithSchema[].class);
+		kryo.register(UnsafeRow.class);
+		kryo.register(UnsafeRow[].class);
+		kryo.register(Object[].class);
+		kryo.register(byte[].class);
+		kryo.register(byte[][].class);
+		kryo.register(StructType.class);
+		kryo.register(StructField.class);
+		kryo.register(StructField[].class);
+		kryo.register(Metadata.class);
+		kryo.register(java.sql.Timestamp.class);
+		kryo.register(java.math.BigDecimal.class);
+		for (String name : SCALA_TYPES) {
+			try {
+				kryo.register(Class.forName(name));
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("Missing Spark SQL type " + name, e);
+			}
+		}
+	}
+}
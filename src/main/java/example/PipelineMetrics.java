@@ -0,0 +1,461 @@
+package example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.metrics.source.Source;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.streaming.SourceProgress;
+import org.apache.spark.sql.streaming.StateOperatorProgress;
+import org.apache.spark.sql.streaming.StreamingQuery;
+import org.apache.spark.sql.streaming.StreamingQueryListener;
+import org.apache.spark.sql.streaming.StreamingQueryProgress;
+import org.apache.spark.util.LongAccumulator;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Metrics of the streaming pipeline, in one Dropwizard registry on the driver.
+ *
+ * - per micro-batch: input rows, input and processing rates, and the duration of each trigger phase
+ *   (getBatch, queryPlanning, addBatch, ...) from the query progress;
+ * - decode errors, dropped duplicates and dimension hits/misses, counted on the executors with accumulators;
+ * - rows and memory held by the state stores of the stateful stages;
+ * - write latency and failures of every sink, reported by FanOutSink;
+ * - the settings chosen by the AdaptiveRateController, with its decisions and query restarts;
+ * - ranged reads and metadata requests of ReadOptimizedFileSystem in this JVM: split planning and listings
+ *   on the driver, every read in local mode (executors log theirs when their filesystem closes);
+ * - Kafka consumer lag per partition: latest offset minus the end offset of the last micro-batch, refreshed
+ *   on a thread of its own so the listener bus never waits for the brokers.
+ *
+ * Durations are histograms, so percentiles show which stage is the bottleneck during a spike. The registry
+ * is registered as a Spark metrics source ("pipeline"), so the sinks of metrics.properties export it, and it
+ * can be served in the Prometheus text format over HTTP or written to a file periodically. Only the progress
+ * of the queries passed to attach() is recorded. A host running several pipelines has one per pipeline.
+ */
+public class PipelineMetrics extends StreamingQueryListener implements Source {
+
+	private static final Logger log = LogManager.getLogger(PipelineMetrics.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final String name;
+	private final MetricRegistry registry = new MetricRegistry();
+	private final Map<String, Long> lags = new ConcurrentHashMap<>();
+	private final Map<TopicPartition, Long> processedOffsets = new ConcurrentHashMap<>();
+	private final Map<UUID, StateOperatorProgress[]> stateOperators = new ConcurrentHashMap<>();
+	private final Set<UUID> queries = ConcurrentHashMap.newKeySet();
+	private final Counter inputRows = registry.counter("batch.inputRows");
+	private volatile double inputRowsPerSecond;
+	private volatile double processedRowsPerSecond;
+
+	private LongAccumulator decodeErrors;
+	private LongAccumulator enrichHits;
+	private LongAccumulator enrichMisses;
+	private LongAccumulator duplicates;
+	private SparkSession spark;
+	private Map<String, Object> kafkaParams;
+	private ScheduledExecutorService lagRefresher;
+	// Used on the lagRefresher thread only, closed by stop() once that thread is done.
+	private volatile KafkaConsumer<byte[], byte[]> consumer;
+	private HttpServer server;
+	private ScheduledExecutorService fileExporter;
+
+	public PipelineMetrics() {
+		this(null);
+	}
+
+	/*
+	 * Metrics of one of the pipelines of a host, registered as the "pipeline.<name>" source (null: the only
+	 * pipeline, "pipeline").
+	 */
+	public PipelineMetrics(String pipeline) {
+		this.name = pipeline == null ? "pipeline" : "pipeline." + pipeline;
+		registry.register("batch.inputRowsPerSecond", (Gauge<Double>) () -> inputRowsPerSecond);
+		registry.register("batch.processedRowsPerSecond", (Gauge<Double>) () -> processedRowsPerSecond);
+		registry.register("kafka.lag.total", (Gauge<Long>) () -> {
+			long total = 0;
+			for (long lag : lags.values()) {
+				total += lag;
+			}
+			return total;
+		});
+		registry.register("state.rows", (Gauge<Long>) () -> {
+			long total = 0;
+			for (StateOperatorProgress[] operators : stateOperators.values()) {
+				for (StateOperatorProgress operator : operators) {
+					total += operator.numRowsTotal();
+				}
+			}
+			return total;
+		});
+		registry.register("state.memoryUsedBytes", (Gauge<Long>) () -> {
+			long total = 0;
+			for (StateOperatorProgress[] operators : stateOperators.values()) {
+				for (StateOperatorProgress operator : operators) {
+					total += operator.memoryUsedBytes();
+				}
+			}
+			return total;
+		});
+	}
+
+	/*
+	 * Creates the executor side counters and registers the metrics with Spark: as a metrics source and
+	 * as a listener of the streaming queries of spark, see attach().
+	 */
+	public PipelineMetrics register(SparkSession spark) {
+		decodeErrors = spark.sparkContext().longAccumulator(name + ".decode.errors");
+		enrichHits = spark.sparkContext().longAccumulator(name + ".enrich.hits");
+		enrichMisses = spark.sparkContext().longAccumulator(name + ".enrich.misses");
+		duplicates = spark.sparkContext().longAccumulator(name + ".dedup.duplicates");
+		registry.register("decode.errors", (Gauge<Long>) () -> decodeErrors.value());
+		registry.register("enrich.hits", (Gauge<Long>) () -> enrichHits.value());
+		registry.register("enrich.misses", (Gauge<Long>) () -> enrichMisses.value());
+		registry.register("dedup.duplicates", (Gauge<Long>) () -> duplicates.value());
+		registry.register("enrich.hitRate", (Gauge<Double>) () -> {
+			long lookups = enrichHits.value() + enrichMisses.value();
+			return lookups == 0 ? 0.0 : (double) enrichHits.value() / lookups;
+		});
+		SparkEnv.get().metricsSystem().registerSource(this);
+		spark.streams().addListener(this);
+		this.spark = spark;
+		return this;
+	}
+
+	/*
+	 * Track the consumer lag of Kafka sources, using the "kafka." options of the source to connect. The
+	 * latest offsets are read every intervalSeconds.
+	 */
+	public synchronized PipelineMetrics withKafkaLag(Map<String, String> kafkaOptions, long intervalSeconds) {
+		kafkaParams = new HashMap<>();
+		for (Map.Entry<String, String> option : kafkaOptions.entrySet()) {
+			if (option.getKey().startsWith("kafka.")) {
+				kafkaParams.put(option.getKey().substring("kafka.".length()), option.getValue());
+			}
+		}
+		kafkaParams.put("key.deserializer", ByteArrayDeserializer.class.getName());
+		kafkaParams.put("value.deserializer", ByteArrayDeserializer.class.getName());
+		kafkaParams.put("enable.auto.commit", "false");
+		if (lagRefresher == null) {
+			lagRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "pipeline-metrics-lag");
+				t.setDaemon(true);
+				return t;
+			});
+			lagRefresher.scheduleWithFixedDelay(this::refreshLag, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+		return this;
+	}
+
+	/*
+	 * Report the maxOffsetsPerTrigger and trigger interval chosen by controller, how often it changed them
+	 * and how often it restarted the query to apply them.
+	 */
+	public PipelineMetrics withRateController(AdaptiveRateController controller) {
+		registry.register("rate.maxOffsetsPerTrigger", (Gauge<Long>) controller::getMaxOffsetsPerTrigger);
+		registry.register("rate.triggerIntervalMs", (Gauge<Long>) controller::getTriggerIntervalMs);
+		registry.register("rate.rowsPerSecond", (Gauge<Double>) controller::getRowsPerSecond);
+		registry.register("rate.decisions", (Gauge<Long>) controller::getDecisions);
+		registry.register("rate.restarts", (Gauge<Long>) controller::getRestarts);
+		return this;
+	}
+
+	/*
+	 * Report the reads and metadata requests of the ReadOptimizedFileSystem instances of this JVM.
+	 */
+	public PipelineMetrics withReadOptimizedFileSystem() {
+		registry.register("fs.readopt.rangedReads", (Gauge<Long>) ReadOptimizedFileSystem::getTotalRangedReads);
+		registry.register("fs.readopt.bytesRead", (Gauge<Long>) ReadOptimizedFileSystem::getTotalBytesRead);
+		registry.register("fs.readopt.streamsOpened", (Gauge<Long>) ReadOptimizedFileSystem::getTotalStreamsOpened);
+		registry.register("fs.readopt.readWaits", (Gauge<Long>) ReadOptimizedFileSystem::getTotalReadWaits);
+		registry.register("fs.readopt.metadataRequests", (Gauge<Long>) ReadOptimizedFileSystem::getTotalMetadataRequests);
+		registry.register("fs.readopt.metadataHits", (Gauge<Long>) ReadOptimizedFileSystem::getTotalMetadataHits);
+		return this;
+	}
+
+	public LongAccumulator getDecodeErrors() {
+		return decodeErrors;
+	}
+
+	public LongAccumulator getEnrichHits() {
+		return enrichHits;
+	}
+
+	public LongAccumulator getEnrichMisses() {
+		return enrichMisses;
+	}
+
+	public LongAccumulator getDuplicates() {
+		return duplicates;
+	}
+
+	@Override
+	public String sourceName() {
+		return name;
+	}
+
+	@Override
+	public MetricRegistry metricRegistry() {
+		return registry;
+	}
+
+	/*
+	 * Reports the progress of query, which keeps its id across restarts from its checkpoint; the progress of
+	 * the other queries of the session (other pipelines, backfill) is ignored.
+	 */
+	public PipelineMetrics attach(StreamingQuery query) {
+		queries.add(query.id());
+		return this;
+	}
+
+	public void recordSink(FanOutSink.SinkResult result) {
+		registry.histogram("sink." + result.getSink() + ".latencyMs").update(result.getDurationMs());
+		if (!result.isSuccess()) {
+			registry.counter("sink." + result.getSink() + ".failures").inc();
+		}
+	}
+
+	@Override
+	public void onQueryStarted(QueryStartedEvent event) {
+	}
+
+	@Override
+	public synchronized void onQueryProgress(QueryProgressEvent event) {
+		StreamingQueryProgress progress = event.progress();
+		if (!queries.contains(progress.id())) {
+			return;
+		}
+		inputRows.inc(progress.numInputRows());
+		inputRowsPerSecond = progress.inputRowsPerSecond();
+		processedRowsPerSecond = progress.processedRowsPerSecond();
+		stateOperators.put(progress.id(), progress.stateOperators());
+		for (Map.Entry<String, Long> duration : progress.durationMs().entrySet()) {
+			registry.histogram("batch." + duration.getKey() + "Ms").update(duration.getValue());
+		}
+		if (kafkaParams != null) {
+			try {
+				recordOffsets(progress.sources());
+			} catch (IOException e) {
+				log.warn("Could not read the end offsets of " + progress.id(), e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void onQueryTerminated(QueryTerminatedEvent event) {
+		if (!queries.contains(event.id())) {
+			return;
+		}
+		stateOperators.remove(event.id());
+	}
+
+	private void recordOffsets(SourceProgress[] sources) throws IOException {
+		for (SourceProgress source : sources) {
+			if (source.endOffset() == null || !source.description().startsWith("KafkaV2")) {
+				continue;
+			}
+			JsonNode topics = MAPPER.readTree(source.endOffset());
+			Iterator<Map.Entry<String, JsonNode>> topicIterator = topics.fields();
+			while (topicIterator.hasNext()) {
+				Map.Entry<String, JsonNode> topic = topicIterator.next();
+				Iterator<Map.Entry<String, JsonNode>> partitions = topic.getValue().fields();
+				while (partitions.hasNext()) {
+					Map.Entry<String, JsonNode> partition = partitions.next();
+					processedOffsets.put(new TopicPartition(topic.getKey(), Integer.parseInt(partition.getKey())),
+							partition.getValue().asLong());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Runs on the lagRefresher thread: the latest offsets of the partitions seen in the progress so far.
+	 */
+	private void refreshLag() {
+		if (processedOffsets.isEmpty()) {
+			return;
+		}
+		try {
+			if (consumer == null) {
+				Properties properties = new Properties();
+				properties.putAll(kafkaParams);
+				consumer = new KafkaConsumer<>(properties);
+			}
+			Map<TopicPartition, Long> latest = consumer.endOffsets(new ArrayList<>(processedOffsets.keySet()));
+			for (Map.Entry<TopicPartition, Long> partition : latest.entrySet()) {
+				String name = "kafka.lag." + partition.getKey().topic() + "-" + partition.getKey().partition();
+				long lag = Math.max(0, partition.getValue() - processedOffsets.get(partition.getKey()));
+				if (lags.put(name, lag) == null) {
+					registry.register(name, (Gauge<Long>) () -> lags.get(name));
+				}
+			}
+		} catch (WakeupException e) {
+			// Interrupted by stop().
+		} catch (Exception e) {
+			log.warn("Could not read the Kafka lag", e);
+		}
+	}
+
+	/*
+	 * All metrics in the Prometheus text exposition format. Histograms are exported as summaries.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		for (Map.Entry<String, Counter> counter : registry.getCounters().entrySet()) {
+			String name = prometheusName(counter.getKey());
+			out.write("# TYPE " + name + " counter\n" + name + " " + counter.getValue().getCount() + "\n");
+		}
+		// getGauges() is declared with the raw Gauge type
+		for (Map.Entry<String, ?> gauge : registry.getGauges().entrySet()) {
+			Object value = ((Gauge<?>) gauge.getValue()).getValue();
+			if (value instanceof Number) {
+				String name = prometheusName(gauge.getKey());
+				out.write("# TYPE " + name + " gauge\n" + name + " " + value + "\n");
+			}
+		}
+		SortedMap<String, Histogram> histograms = registry.getHistograms();
+		for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+			String name = prometheusName(histogram.getKey());
+			Snapshot snapshot = histogram.getValue().getSnapshot();
+			out.write("# TYPE " + name + " summary\n");
+			out.write(name + "{quantile=\"0.5\"} " + snapshot.getMedian() + "\n");
+			out.write(name + "{quantile=\"0.75\"} " + snapshot.get75thPercentile() + "\n");
+			out.write(name + "{quantile=\"0.95\"} " + snapshot.get95thPercentile() + "\n");
+			out.write(name + "{quantile=\"0.99\"} " + snapshot.get99thPercentile() + "\n");
+			out.write(name + "_count " + histogram.getValue().getCount() + "\n");
+			out.write(name + "_max " + snapshot.getMax() + "\n");
+		}
+	}
+
+	public String toPrometheus() throws IOException {
+		StringWriter out = new StringWriter();
+		writePrometheus(out);
+		return out.toString();
+	}
+
+	/*
+	 * Serve the metrics on http://<driver>:port/metrics.
+	 */
+	public synchronized PipelineMetrics startHttpServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "pipeline-metrics-http");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+		log.info("Serving pipeline metrics on port " + server.getAddress().getPort());
+		return this;
+	}
+
+	/*
+	 * Rewrite file every intervalSeconds, e.g. for the node exporter textfile collector. The file is
+	 * replaced atomically, so a scrape never reads it half written.
+	 */
+	public synchronized PipelineMetrics startFileExport(String file, long intervalSeconds) {
+		Path target = Paths.get(file);
+		fileExporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pipeline-metrics-file");
+			t.setDaemon(true);
+			return t;
+		});
+		fileExporter.scheduleWithFixedDelay(() -> {
+			try {
+				Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+				Files.write(temp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				log.warn("Could not write the metrics to " + target, e);
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		return this;
+	}
+
+	/*
+	 * Stops the exports and the lag refresh, and detaches from Spark: no listener, no metrics source.
+	 */
+	public synchronized void stop() {
+		if (spark != null) {
+			spark.streams().removeListener(this);
+			if (SparkEnv.get() != null) {
+				SparkEnv.get().metricsSystem().removeSource(this);
+			}
+			spark = null;
+		}
+		if (lagRefresher != null) {
+			lagRefresher.shutdownNow();
+			KafkaConsumer<byte[], byte[]> refreshing = consumer;
+			if (refreshing != null) {
+				refreshing.wakeup();
+			}
+			try {
+				if (!lagRefresher.awaitTermination(10, TimeUnit.SECONDS)) {
+					log.warn("The Kafka lag refresh did not stop, its consumer is left open");
+					consumer = null;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				consumer = null;
+			}
+			lagRefresher = null;
+		}
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (fileExporter != null) {
+			fileExporter.shutdownNow();
+			fileExporter = null;
+		}
+		if (consumer != null) {
+			consumer.close();
+			consumer = null;
+		}
+	}
+
+	private static String prometheusName(String name) {
+		return "pipeline_" + name.replaceAll("[^A-Za-z0-9_]", "_");
+	}
+}
@@ -0,0 +1,149 @@
+package example;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/*
+ * Decodes Kafka values that are Protobuf messages, described by a descriptor set file
+ * (protoc --include_imports --descriptor_set_out=organization.desc organization.proto) and a message type.
+ *
+ * No generated classes are needed: messages are parsed as DynamicMessage and the projected fields are read
+ * by name (exact, else lower case with "_" for other characters, e.g. organization_id for "Organization
+ * Id"). Fields the message type does not have stay null and unknown fields are ignored, the usual Protobuf
+ * evolution rules. Unset proto3 scalars read as their default value, like in generated code; unset message
+ * fields are null. Enums are read as their name, google.protobuf.Timestamp as a timestamp and the wrapper
+ * types as their value.
+ */
+public class ProtobufValueDecoder extends ValueDecoder {
+
+	private static final long serialVersionUID = 1L;
+
+	// Descriptors are not serializable, the descriptor set is shipped and parsed per partition.
+	private final byte[] descriptorSet;
+	private final String messageType;
+
+	public ProtobufValueDecoder(StructType schema, byte[] descriptorSet, String messageType) {
+		super(schema);
+		this.descriptorSet = descriptorSet;
+		this.messageType = messageType;
+		descriptor();
+	}
+
+	@Override
+	protected RecordDecoder newRecordDecoder() {
+		final Descriptor descriptor = descriptor();
+		final StructField[] fields = schema.fields();
+		final FieldDescriptor[] protoFields = new FieldDescriptor[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			protoFields[i] = findField(descriptor, fields[i].name());
+		}
+		return (value, values) -> {
+			DynamicMessage message = DynamicMessage.parseFrom(descriptor, value);
+			for (int i = 0; i < fields.length; i++) {
+				FieldDescriptor field = protoFields[i];
+				if (field == null) {
+					continue;
+				}
+				boolean unset = (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+						|| field.getContainingOneof() != null
+						|| field.getFile().getSyntax() == FileDescriptor.Syntax.PROTO2) && !message.hasField(field);
+				values[i] = unset ? null : convert(protoValue(message.getField(field)), fields[i].dataType());
+			}
+		};
+	}
+
+	private Descriptor descriptor() {
+		try {
+			FileDescriptorSet set = FileDescriptorSet.parseFrom(descriptorSet);
+			Map<String, FileDescriptorProto> protos = new HashMap<>();
+			for (FileDescriptorProto proto : set.getFileList()) {
+				protos.put(proto.getName(), proto);
+			}
+			Map<String, FileDescriptor> files = new HashMap<>();
+			for (FileDescriptorProto proto : set.getFileList()) {
+				for (Descriptor type : build(proto, protos, files).getMessageTypes()) {
+					if (type.getFullName().equals(messageType) || type.getName().equals(messageType)) {
+						return type;
+					}
+				}
+			}
+		} catch (InvalidProtocolBufferException | DescriptorValidationException e) {
+			throw new IllegalArgumentException("Invalid Protobuf descriptor set: " + e.getMessage(), e);
+		}
+		throw new IllegalArgumentException("Message type " + messageType + " not found in the descriptor set");
+	}
+
+	private static FileDescriptor build(FileDescriptorProto proto, Map<String, FileDescriptorProto> protos,
+										Map<String, FileDescriptor> files) throws DescriptorValidationException {
+		FileDescriptor file = files.get(proto.getName());
+		if (file == null) {
+			FileDescriptor[] dependencies = new FileDescriptor[proto.getDependencyCount()];
+			for (int i = 0; i < dependencies.length; i++) {
+				FileDescriptorProto dependency = protos.get(proto.getDependency(i));
+				if (dependency == null) {
+					throw new IllegalArgumentException("Descriptor set has no " + proto.getDependency(i)
+							+ ", build it with protoc --include_imports");
+				}
+				dependencies[i] = build(dependency, protos, files);
+			}
+			file = FileDescriptor.buildFrom(proto, dependencies);
+			files.put(proto.getName(), file);
+		}
+		return file;
+	}
+
+	private static FieldDescriptor findField(Descriptor descriptor, String name) {
+		FieldDescriptor field = descriptor.findFieldByName(name);
+		if (field == null) {
+			field = descriptor.findFieldByName(name.toLowerCase().replaceAll("[^a-z0-9_]", "_"));
+		}
+		if (field != null && (field.isRepeated() || (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+				&& !isScalarMessage(field.getMessageType())))) {
+			throw new IllegalArgumentException("Field " + field.getFullName() + " is not a scalar, only flat schemas"
+					+ " can be decoded");
+		}
+		return field;
+	}
+
+	private static boolean isScalarMessage(Descriptor type) {
+		return type.getFullName().equals("google.protobuf.Timestamp")
+				|| (type.getFile().getPackage().equals("google.protobuf") && type.getName().endsWith("Value")
+						&& type.findFieldByName("value") != null);
+	}
+
+	private static Object protoValue(Object value) {
+		if (value instanceof EnumValueDescriptor) {
+			return ((EnumValueDescriptor) value).getName();
+		} else if (value instanceof ByteString) {
+			return ((ByteString) value).toByteArray();
+		} else if (value instanceof Message) {
+			Message message = (Message) value;
+			Descriptor type = message.getDescriptorForType();
+			if (type.getFullName().equals("google.protobuf.Timestamp")) {
+				long seconds = (Long) message.getField(type.findFieldByName("seconds"));
+				int nanos = (Integer) message.getField(type.findFieldByName("nanos"));
+				Timestamp timestamp = new Timestamp(seconds * 1000);
+				timestamp.setNanos(nanos);
+				return timestamp;
+			}
+			return protoValue(message.getField(type.findFieldByName("value")));
+		}
+		return value;
+	}
+}
@@ -0,0 +1,663 @@
+package example;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Options.ChecksumOpt;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/*
+ * Read-optimized wrapper around another Hadoop filesystem, usually the BmcFilesystem of oci:// paths.
+ *
+ * Files of at least fs.readopt.minSize bytes are read as chunkSize ranges fetched in parallel: a stream keeps
+ * the chunk being read and the next readAhead - 1 chunks in flight on a thread pool shared by all the streams
+ * of the filesystem, each through its own positioned read of the underlying filesystem (a ranged GET on
+ * Object Storage). Read-ahead buffers come from a pool of maxBuffers chunks; when it is empty a stream only
+ * fetches the chunk it is reading, so memory stays bounded however many tasks read at once. Smaller files
+ * are read by the underlying filesystem as before.
+ *
+ * File statuses and directory listings under the fs.readopt.cachePrefixes paths, which should hold input
+ * that is not changed while jobs read it, are cached for metadataTtlSeconds so split planning does not list
+ * the bucket again. Nothing is cached by default: checkpoints, sink output and anything else written by
+ * other clients are always listed afresh. Any change made through this filesystem (create, append, delete,
+ * rename, mkdirs) clears the cache, and open() always asks the underlying filesystem for the length, so a
+ * stream never stops at or reads past a stale one.
+ *
+ * Enable it for a scheme with fs.<scheme>.impl=example.ReadOptimizedFileSystem; the underlying filesystem,
+ * for the same scheme, is fs.readopt.<scheme>.impl (BmcFilesystem for oci). To try it on other files, wrap
+ * an initialized filesystem, e.g. FileSystem.getLocal(conf), and initialize the wrapper with its URI.
+ * Counters are per filesystem instance (one per bucket and JVM) and are logged when it is closed; their
+ * totals over the instances of the JVM are exported by PipelineMetrics.withReadOptimizedFileSystem().
+ */
+public class ReadOptimizedFileSystem extends FilterFileSystem {
+
+	private static final Logger log = LogManager.getLogger(ReadOptimizedFileSystem.class);
+
+	public static final String PREFIX = "fs.readopt.";
+	public static final String CHUNK_SIZE = PREFIX + "chunkSize";
+	public static final String MIN_SIZE = PREFIX + "minSize";
+	public static final String READ_AHEAD = PREFIX + "readAhead";
+	public static final String THREADS = PREFIX + "threads";
+	public static final String MAX_BUFFERS = PREFIX + "maxBuffers";
+	public static final String METADATA_TTL_SECONDS = PREFIX + "metadataTtlSeconds";
+	public static final String CACHE_PREFIXES = PREFIX + "cachePrefixes";
+
+	private static final String DEFAULT_OCI_IMPL = "com.oracle.bmc.hdfs.BmcFilesystem";
+
+	private int chunkSize;
+	private long minSize;
+	private int readAhead;
+	private long metadataTtlMillis;
+	private final List<String> cachePrefixes = new ArrayList<>();
+	private ExecutorService readers;
+	private BufferPool buffers;
+
+	private final Map<Path, Cached<FileStatus>> statuses = new ConcurrentHashMap<>();
+	private final Map<Path, Cached<FileStatus[]>> listings = new ConcurrentHashMap<>();
+
+	private final AtomicLong rangedReads = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong readNanos = new AtomicLong();
+	private final AtomicLong streamsOpened = new AtomicLong();
+	private final AtomicLong readWaits = new AtomicLong();
+	private final AtomicLong metadataRequests = new AtomicLong();
+	private final AtomicLong metadataHits = new AtomicLong();
+
+	// The same counters over all the instances of the JVM, closed ones included, see PipelineMetrics.
+	private static final AtomicLong TOTAL_RANGED_READS = new AtomicLong();
+	private static final AtomicLong TOTAL_BYTES_READ = new AtomicLong();
+	private static final AtomicLong TOTAL_STREAMS_OPENED = new AtomicLong();
+	private static final AtomicLong TOTAL_READ_WAITS = new AtomicLong();
+	private static final AtomicLong TOTAL_METADATA_REQUESTS = new AtomicLong();
+	private static final AtomicLong TOTAL_METADATA_HITS = new AtomicLong();
+	private final long createdAt = System.currentTimeMillis();
+
+	private static final class Cached<T> {
+		final T value;
+		final long cachedAt;
+
+		Cached(T value) {
+			this.value = value;
+			this.cachedAt = System.currentTimeMillis();
+		}
+	}
+
+	public ReadOptimizedFileSystem() {
+	}
+
+	/*
+	 * Wraps an initialized filesystem, e.g. to use it without registering the class for a scheme.
+	 */
+	public ReadOptimizedFileSystem(FileSystem fs) {
+		super(fs);
+	}
+
+	@Override
+	public void initialize(URI name, Configuration conf) throws IOException {
+		if (fs == null) {
+			String key = PREFIX + name.getScheme() + ".impl";
+			String impl = conf.get(key, "oci".equals(name.getScheme()) ? DEFAULT_OCI_IMPL : null);
+			if (impl == null) {
+				throw new IOException("No filesystem to wrap for " + name + ", set " + key);
+			}
+			try {
+				fs = (FileSystem) ReflectionUtils.newInstance(conf.getClassByName(impl), conf);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Filesystem class " + impl + " not found", e);
+			}
+			fs.initialize(name, conf);
+		}
+		super.initialize(name, conf);
+
+		chunkSize = (int) Math.min(Integer.MAX_VALUE - 8, conf.getLongBytes(CHUNK_SIZE, 8 << 20));
+		minSize = conf.getLongBytes(MIN_SIZE, 2L * chunkSize);
+		readAhead = Math.max(1, conf.getInt(READ_AHEAD, 4));
+		metadataTtlMillis = conf.getLong(METADATA_TTL_SECONDS, 300) * 1000;
+		for (String prefix : conf.getTrimmedStrings(CACHE_PREFIXES)) {
+			String qualified = makeQualified(new Path(prefix)).toString();
+			cachePrefixes.add(qualified.endsWith("/") ? qualified : qualified + "/");
+		}
+		int threads = Math.max(1, conf.getInt(THREADS, 16));
+		buffers = new BufferPool(chunkSize, conf.getInt(MAX_BUFFERS, 2 * threads));
+		readers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ranged-read");
+			t.setDaemon(true);
+			return t;
+		});
+		log.info("Reading " + getUri() + " through " + fs.getClass().getName() + " in " + chunkSize
+				+ " byte chunks, " + readAhead + " in flight per stream, " + threads + " threads");
+	}
+
+	@Override
+	public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+		Path path = makeQualified(f);
+		metadataRequests.incrementAndGet();
+		TOTAL_METADATA_REQUESTS.incrementAndGet();
+		FileStatus status = fs.getFileStatus(path);
+		if (cached(path)) {
+			statuses.put(path, new Cached<>(status));
+		}
+		if (status.isDirectory() || status.getLen() < minSize) {
+			return fs.open(f, bufferSize);
+		}
+		return new FSDataInputStream(new RangedInputStream(status.getPath(), status.getLen()));
+	}
+
+	@Override
+	public FileStatus getFileStatus(Path f) throws IOException {
+		Path path = makeQualified(f);
+		Cached<FileStatus> cached = statuses.get(path);
+		if (fresh(cached)) {
+			metadataHits.incrementAndGet();
+			TOTAL_METADATA_HITS.incrementAndGet();
+			return cached.value;
+		}
+		metadataRequests.incrementAndGet();
+		TOTAL_METADATA_REQUESTS.incrementAndGet();
+		FileStatus status = fs.getFileStatus(path);
+		if (cached(path)) {
+			statuses.put(path, new Cached<>(status));
+		}
+		return status;
+	}
+
+	@Override
+	public FileStatus[] listStatus(Path f) throws IOException {
+		Path path = makeQualified(f);
+		Cached<FileStatus[]> cached = listings.get(path);
+		if (fresh(cached)) {
+			metadataHits.incrementAndGet();
+			TOTAL_METADATA_HITS.incrementAndGet();
+			return cached.value.clone();
+		}
+		metadataRequests.incrementAndGet();
+		TOTAL_METADATA_REQUESTS.incrementAndGet();
+		FileStatus[] children = fs.listStatus(path);
+		if (cached(path)) {
+			listings.put(path, new Cached<>(children));
+			for (FileStatus child : children) {
+				statuses.put(child.getPath(), new Cached<>(child));
+			}
+		}
+		return children.clone();
+	}
+
+	/*
+	 * From the cached listing; FilterFileSystem would list through the underlying filesystem.
+	 */
+	@Override
+	public RemoteIterator<LocatedFileStatus> listLocatedStatus(Path f) throws IOException {
+		FileStatus[] children = listStatus(f);
+		return new RemoteIterator<LocatedFileStatus>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < children.length;
+			}
+
+			@Override
+			public LocatedFileStatus next() throws IOException {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				FileStatus child = children[next++];
+				return new LocatedFileStatus(child,
+						child.isFile() ? getFileBlockLocations(child, 0, child.getLen()) : null);
+			}
+		};
+	}
+
+	@Override
+	public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+									 short replication, long blockSize, Progressable progress) throws IOException {
+		invalidate();
+		return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+	}
+
+	@Override
+	public FSDataOutputStream create(Path f, FsPermission permission, EnumSet<CreateFlag> flags, int bufferSize,
+									 short replication, long blockSize, Progressable progress, ChecksumOpt checksumOpt)
+			throws IOException {
+		invalidate();
+		return super.create(f, permission, flags, bufferSize, replication, blockSize, progress, checksumOpt);
+	}
+
+	@Override
+	public FSDataOutputStream createNonRecursive(Path f, FsPermission permission, EnumSet<CreateFlag> flags,
+												 int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+		invalidate();
+		return super.createNonRecursive(f, permission, flags, bufferSize, replication, blockSize, progress);
+	}
+
+	@Override
+	public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+		invalidate();
+		return super.append(f, bufferSize, progress);
+	}
+
+	@Override
+	public boolean delete(Path f, boolean recursive) throws IOException {
+		invalidate();
+		return super.delete(f, recursive);
+	}
+
+	@Override
+	public boolean rename(Path src, Path dst) throws IOException {
+		invalidate();
+		return super.rename(src, dst);
+	}
+
+	@Override
+	public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+		invalidate();
+		return super.mkdirs(f, permission);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			log.info(getUri() + ": " + summary());
+			if (readers != null) {
+				readers.shutdownNow();
+			}
+		} finally {
+			super.close();
+		}
+	}
+
+	public long getRangedReads() {
+		return rangedReads.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/*
+	 * Bytes per second of ranged reads since the filesystem was created.
+	 */
+	public double getBytesPerSecond() {
+		long elapsed = System.currentTimeMillis() - createdAt;
+		return elapsed == 0 ? 0 : bytesRead.get() * 1000.0 / elapsed;
+	}
+
+	/*
+	 * Bytes per second of a single ranged read, i.e. of one connection.
+	 */
+	public double getBytesPerSecondPerRead() {
+		long nanos = readNanos.get();
+		return nanos == 0 ? 0 : bytesRead.get() * 1e9 / nanos;
+	}
+
+	public long getStreamsOpened() {
+		return streamsOpened.get();
+	}
+
+	/*
+	 * Reads that had to wait for their chunk: the read-ahead did not keep up with the reader.
+	 */
+	public long getReadWaits() {
+		return readWaits.get();
+	}
+
+	public long getMetadataRequests() {
+		return metadataRequests.get();
+	}
+
+	public long getMetadataHits() {
+		return metadataHits.get();
+	}
+
+	public static long getTotalRangedReads() {
+		return TOTAL_RANGED_READS.get();
+	}
+
+	public static long getTotalBytesRead() {
+		return TOTAL_BYTES_READ.get();
+	}
+
+	public static long getTotalStreamsOpened() {
+		return TOTAL_STREAMS_OPENED.get();
+	}
+
+	public static long getTotalReadWaits() {
+		return TOTAL_READ_WAITS.get();
+	}
+
+	public static long getTotalMetadataRequests() {
+		return TOTAL_METADATA_REQUESTS.get();
+	}
+
+	public static long getTotalMetadataHits() {
+		return TOTAL_METADATA_HITS.get();
+	}
+
+	public String summary() {
+		return bytesRead.get() + " bytes in " + rangedReads.get() + " ranged reads over " + streamsOpened.get()
+				+ " streams (" + Math.round(getBytesPerSecondPerRead() / 1024) + " KB/s per read), "
+				+ readWaits.get() + " reads waited; " + metadataRequests.get() + " metadata requests, "
+				+ metadataHits.get() + " served from the cache";
+	}
+
+	private boolean fresh(Cached<?> cached) {
+		return cached != null && System.currentTimeMillis() - cached.cachedAt < metadataTtlMillis;
+	}
+
+	/*
+	 * Whether the metadata of path may be cached: it is one of the cachePrefixes or under one.
+	 */
+	private boolean cached(Path path) {
+		String name = path.toString() + "/";
+		for (String prefix : cachePrefixes) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void invalidate() {
+		statuses.clear();
+		listings.clear();
+	}
+
+	/*
+	 * Chunk buffers, of which at most max are handed out for read-ahead. Buffers for the chunk a stream is
+	 * reading are always given, allocated outside the pool when it is exhausted.
+	 */
+	private static final class BufferPool {
+		private final int size;
+		private final Semaphore permits;
+		private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+		BufferPool(int size, int max) {
+			this.size = size;
+			this.permits = new Semaphore(Math.max(0, max));
+		}
+
+		/*
+		 * Returns null when required is false and the pool is exhausted.
+		 */
+		Chunk acquire(long index, boolean required) {
+			if (permits.tryAcquire()) {
+				byte[] buffer = free.poll();
+				return new Chunk(index, buffer == null ? new byte[size] : buffer, this);
+			}
+			return required ? new Chunk(index, new byte[size], null) : null;
+		}
+
+		void release(byte[] buffer) {
+			free.offer(buffer);
+			permits.release();
+		}
+	}
+
+	/*
+	 * A chunk is referenced by its fetch and by its stream; the buffer goes back to the pool when both let go,
+	 * so a chunk dropped by a seek is never reused while its fetch is still writing into it.
+	 */
+	private static final class Chunk {
+		final long index;
+		final byte[] data;
+		final BufferPool pool;
+		final AtomicBoolean claimed = new AtomicBoolean();
+		final AtomicInteger references = new AtomicInteger(2);
+		Future<?> fetch;
+
+		Chunk(long index, byte[] data, BufferPool pool) {
+			this.index = index;
+			this.data = data;
+			this.pool = pool;
+		}
+
+		void unreference() {
+			if (references.decrementAndGet() == 0 && pool != null) {
+				pool.release(data);
+			}
+		}
+
+		/*
+		 * Called by the stream; a fetch that did not start yet will not start.
+		 */
+		void drop() {
+			if (claimed.compareAndSet(false, true)) {
+				unreference();
+			}
+			unreference();
+		}
+	}
+
+	/*
+	 * Sequential stream over the chunks of one file, with positioned reads of the underlying filesystem.
+	 * The underlying streams are opened lazily, at most one per chunk in flight, and reused.
+	 */
+	private class RangedInputStream extends FSInputStream {
+		private final Path path;
+		private final long length;
+		private final TreeMap<Long, Chunk> window = new TreeMap<>();
+		private final Queue<FSDataInputStream> idle = new ArrayDeque<>();
+		private long position;
+		private volatile boolean closed;
+
+		RangedInputStream(Path path, long length) {
+			this.path = path;
+			this.length = length;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			if (position >= length) {
+				return -1;
+			}
+			Chunk chunk = chunk(position / chunkSize);
+			int value = chunk.data[(int) (position - chunk.index * chunkSize)] & 0xff;
+			position++;
+			return value;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= length) {
+				return -1;
+			}
+			Chunk chunk = chunk(position / chunkSize);
+			int offset = (int) (position - chunk.index * chunkSize);
+			int n = (int) Math.min(len, Math.min(chunkSize - offset, length - position));
+			System.arraycopy(chunk.data, offset, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public synchronized void seek(long pos) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed: " + path);
+			}
+			if (pos < 0 || pos > length) {
+				throw new EOFException("Seek to " + pos + " outside of " + path + " (" + length + " bytes)");
+			}
+			position = pos;
+		}
+
+		@Override
+		public synchronized long getPos() {
+			return position;
+		}
+
+		@Override
+		public boolean seekToNewSource(long targetPos) {
+			return false;
+		}
+
+		@Override
+		public synchronized int available() {
+			return (int) Math.min(Integer.MAX_VALUE, length - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				for (Chunk chunk : window.values()) {
+					chunk.drop();
+				}
+				window.clear();
+			}
+			synchronized (idle) {
+				for (FSDataInputStream in : idle) {
+					in.close();
+				}
+				idle.clear();
+			}
+		}
+
+		/*
+		 * The chunk at index, after dropping the chunks outside of [index, index + readAhead) and scheduling
+		 * the missing ones.
+		 */
+		private Chunk chunk(long index) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed: " + path);
+			}
+			long last = Math.min(index + readAhead, (length + chunkSize - 1) / chunkSize) - 1;
+			for (Iterator<Chunk> i = window.values().iterator(); i.hasNext();) {
+				Chunk chunk = i.next();
+				if (chunk.index < index || chunk.index > last) {
+					chunk.drop();
+					i.remove();
+				}
+			}
+			for (long i = index; i <= last; i++) {
+				if (!window.containsKey(i)) {
+					Chunk chunk = buffers.acquire(i, i == index);
+					if (chunk == null) {
+						break;
+					}
+					chunk.fetch = readers.submit(() -> {
+						fetch(chunk);
+						return null;
+					});
+					window.put(i, chunk);
+				}
+			}
+
+			Chunk chunk = window.get(index);
+			if (!chunk.fetch.isDone()) {
+				readWaits.incrementAndGet();
+				TOTAL_READ_WAITS.incrementAndGet();
+			}
+			try {
+				chunk.fetch.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted reading " + path, e);
+			} catch (ExecutionException e) {
+				// Fetch again on the next read, with the read-ahead that most likely failed the same way.
+				for (Chunk failed : window.values()) {
+					failed.drop();
+				}
+				window.clear();
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Failed to read " + path + " at " + index * chunkSize, e.getCause());
+			}
+			return chunk;
+		}
+
+		private void fetch(Chunk chunk) throws IOException {
+			if (!chunk.claimed.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				long offset = chunk.index * chunkSize;
+				int size = (int) Math.min(chunkSize, length - offset);
+				FSDataInputStream in = borrow();
+				long start = System.nanoTime();
+				try {
+					in.readFully(offset, chunk.data, 0, size);
+				} catch (IOException | RuntimeException e) {
+					in.close();
+					throw e;
+				}
+				readNanos.addAndGet(System.nanoTime() - start);
+				rangedReads.incrementAndGet();
+				bytesRead.addAndGet(size);
+				TOTAL_RANGED_READS.incrementAndGet();
+				TOTAL_BYTES_READ.addAndGet(size);
+				giveBack(in);
+			} finally {
+				chunk.unreference();
+			}
+		}
+
+		private FSDataInputStream borrow() throws IOException {
+			synchronized (idle) {
+				FSDataInputStream in = idle.poll();
+				if (in != null) {
+					return in;
+				}
+			}
+			streamsOpened.incrementAndGet();
+			TOTAL_STREAMS_OPENED.incrementAndGet();
+			FSDataInputStream in = fs.open(path);
+			if (in == null) {
+				throw new FileNotFoundException(path.toString());
+			}
+			return in;
+		}
+
+		private void giveBack(FSDataInputStream in) throws IOException {
+			synchronized (idle) {
+				if (!closed) {
+					idle.add(in);
+					return;
+				}
+			}
+			in.close();
+		}
+	}
+}
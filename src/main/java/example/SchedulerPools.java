@@ -0,0 +1,65 @@
+package example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.SparkSession;
+
+/*
+ * FAIR scheduling of the pipelines of a host: one scheduler pool per pipeline, so a catch-up or a slow sink
+ * of one pipeline does not hold back the micro-batches of the others.
+ *
+ * The pools are written to an allocation file from the pool.weight, pool.minShare and pool.schedulingMode of
+ * every pipeline: under contention a pool gets the cores it is guaranteed by minShare, then a share of the
+ * rest in proportion to its weight. Jobs run in the pool of the thread that submits them, see use(); a
+ * streaming query keeps the pool of the thread that started it.
+ */
+public class SchedulerPools {
+
+	private static final Logger log = LogManager.getLogger(SchedulerPools.class);
+
+	public static final String POOL_PROPERTY = "spark.scheduler.pool";
+
+	public static SparkSession.Builder configure(SparkSession.Builder builder, Map<String, PipelineConfig> pipelines)
+			throws IOException {
+		String allocations = allocations(pipelines);
+		File file = File.createTempFile("fairscheduler", ".xml");
+		file.deleteOnExit();
+		Files.write(file.toPath(), allocations.getBytes(StandardCharsets.UTF_8));
+		log.info("Scheduler pools in " + file + ":\n" + allocations);
+		return builder.config("spark.scheduler.mode", "FAIR")
+				.config("spark.scheduler.allocation.file", file.getAbsolutePath());
+	}
+
+	/*
+	 * The allocation file, with a pool named after every pipeline.
+	 */
+	static String allocations(Map<String, PipelineConfig> pipelines) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<allocations>\n");
+		for (Map.Entry<String, PipelineConfig> pipeline : pipelines.entrySet()) {
+			PipelineConfig config = pipeline.getValue();
+			String mode = config.get("pool.schedulingMode", "FAIR").toUpperCase();
+			if (!mode.equals("FAIR") && !mode.equals("FIFO")) {
+				throw new IllegalArgumentException("pool.schedulingMode of " + pipeline.getKey() + " must be FAIR or FIFO");
+			}
+			xml.append("  <pool name=\"").append(pipeline.getKey()).append("\">\n")
+					.append("    <schedulingMode>").append(mode).append("</schedulingMode>\n")
+					.append("    <weight>").append(config.getInt("pool.weight", 1)).append("</weight>\n")
+					.append("    <minShare>").append(config.getInt("pool.minShare", 0)).append("</minShare>\n")
+					.append("  </pool>\n");
+		}
+		return xml.append("</allocations>\n").toString();
+	}
+
+	/*
+	 * Runs the jobs submitted by the calling thread, and the streaming queries it starts, in pool.
+	 */
+	public static void use(SparkSession spark, String pool) {
+		spark.sparkContext().setLocalProperty(POOL_PROPERTY, pool);
+	}
+}
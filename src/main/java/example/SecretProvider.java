@@ -0,0 +1,9 @@
+package example;
+
+/*
+ * Source of secret values, addressed by the secret OCID.
+ */
+public interface SecretProvider {
+
+	byte[] getSecret(String secretOcid);
+}
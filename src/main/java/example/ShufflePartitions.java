@@ -0,0 +1,57 @@
+package example;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.SparkSession;
+
+/*
+ * Number of shuffle partitions from the cluster size and the input rate, instead of a fixed value.
+ *
+ * Every executor core gets at least one partition, so adding executors adds parallelism, and a trigger
+ * of rowsPerTrigger rows gets one partition per rowsPerPartition rows, so a large catch-up batch is not
+ * squeezed through a few tasks. The per-batch queries of the sinks run with adaptive query execution, which
+ * coalesces small partitions and splits skewed ones at run time, so erring on the high side is cheap there.
+ * The state of the stateful stages keeps the number of partitions it was first checkpointed with.
+ */
+public class ShufflePartitions {
+
+	private static final Logger log = LogManager.getLogger(ShufflePartitions.class);
+
+	public static final String PROPERTY = "spark.sql.shuffle.partitions";
+
+	/*
+	 * Cores of the cluster: the configured executors, or the default parallelism (e.g. local[*]) when the
+	 * executors are allocated dynamically or have not registered yet.
+	 */
+	public static int cores(SparkSession spark) {
+		SparkConf conf = spark.sparkContext().getConf();
+		int executors = conf.getInt("spark.executor.instances", 0);
+		int coresPerExecutor = conf.getInt("spark.executor.cores", 1);
+		return Math.max(executors * coresPerExecutor, spark.sparkContext().defaultParallelism());
+	}
+
+	public static int size(int cores, long rowsPerTrigger, long rowsPerPartition, int minPartitions, int maxPartitions) {
+		long byRate = rowsPerPartition > 0 ? (rowsPerTrigger + rowsPerPartition - 1) / rowsPerPartition : 0;
+		long partitions = Math.max(cores, byRate);
+		return (int) Math.max(minPartitions, Math.min(maxPartitions, partitions));
+	}
+
+	/*
+	 * Sets spark.sql.shuffle.partitions on spark, unless <prefix>.partitions fixes it.
+	 */
+	public static int configure(SparkSession spark, PipelineConfig config, String prefix, long rowsPerTrigger) {
+		int partitions;
+		if (config.has(prefix + ".partitions")) {
+			partitions = config.getInt(prefix + ".partitions", 1);
+		} else {
+			int cores = cores(spark);
+			partitions = size(cores, rowsPerTrigger, config.getLong(prefix + ".rowsPerPartition", 100000),
+					config.getInt(prefix + ".minPartitions", 1), config.getInt(prefix + ".maxPartitions", 400));
+			log.info("Shuffle partitions: " + partitions + " for " + cores + " cores and " + rowsPerTrigger
+					+ " rows per trigger");
+		}
+		spark.conf().set(PROPERTY, partitions);
+		return partitions;
+	}
+}
@@ -0,0 +1,126 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
+
+import static org.apache.spark.sql.functions.broadcast;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.desc;
+import static org.apache.spark.sql.functions.not;
+
+/*
+ * Shuffle join of micro-batches with a dimension too large for DimensionCache, which broadcasts all of it.
+ *
+ * A few hot keys (countries with most of the organizations) would put most of every batch into the same
+ * shuffle partitions. The hot keys of each batch are found first: a key is hot when it has more than
+ * hotKeyFraction of the batch rows, up to maxHotKeys of them. Their rows are joined with a broadcast of
+ * only the matching dimension rows, without a shuffle, and all other rows with a regular shuffle join, where
+ * adaptive query execution can still split skewed partitions.
+ *
+ * The result has the same layout as DimensionCache.enrich(): the stream columns followed by the dimension
+ * columns without its key, and stream rows without a match are dropped. The dimension is cached on the
+ * executors and reloaded when older than ttlSeconds.
+ */
+public class SkewAwareJoin {
+
+	private static final Logger log = LogManager.getLogger(SkewAwareJoin.class);
+
+	private final DimensionCache.Loader loader;
+	private final String keyColumn;
+	private final long ttlMillis;
+	private double hotKeyFraction = 0.05;
+	private int maxHotKeys = 20;
+	private Dataset<Row> dimension;
+	private long loadedAt;
+
+	/*
+	 * ttlSeconds <= 0 disables the reload.
+	 */
+	public SkewAwareJoin(DimensionCache.Loader loader, String keyColumn, long ttlSeconds) {
+		this.loader = loader;
+		this.keyColumn = keyColumn;
+		this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+	}
+
+	public SkewAwareJoin withHotKeys(double hotKeyFraction, int maxHotKeys) {
+		this.hotKeyFraction = hotKeyFraction;
+		this.maxHotKeys = maxHotKeys;
+		return this;
+	}
+
+	public Dataset<Row> enrich(Dataset<Row> stream, String streamKeyColumn) {
+		Dataset<Row> table = dimension();
+		String streamKey = stream.schema().fieldNames()[DimensionCache.indexOf(stream.schema(), streamKeyColumn)];
+		String dimensionKey = table.schema().fieldNames()[DimensionCache.indexOf(table.schema(), keyColumn)];
+
+		List<Column> output = new ArrayList<>();
+		for (String column : stream.columns()) {
+			output.add(col("s.`" + column + "`"));
+		}
+		for (String column : table.columns()) {
+			if (!column.equals(dimensionKey)) {
+				output.add(col("d.`" + column + "`"));
+			}
+		}
+		Column key = col("s.`" + streamKey + "`").cast("string");
+		Column condition = key.equalTo(col("d.`" + dimensionKey + "`").cast("string"));
+		Column[] columns = output.toArray(new Column[0]);
+
+		// The keys of an unbounded stream can not be counted up front, it gets a plain stream-static join.
+		Object[] hotKeys = stream.isStreaming() ? new Object[0] : hotKeys(stream, streamKey);
+		if (hotKeys.length == 0) {
+			return stream.as("s").join(table.as("d"), condition).select(columns);
+		}
+		Column hot = col(streamKey).cast("string").isin(hotKeys);
+		Dataset<Row> hotRows = stream.filter(hot).as("s")
+				.join(broadcast(table.filter(col(dimensionKey).cast("string").isin(hotKeys)).as("d")), condition)
+				.select(columns);
+		Dataset<Row> otherRows = stream.filter(not(hot).or(col(streamKey).isNull())).as("s")
+				.join(table.as("d"), condition)
+				.select(columns);
+		return hotRows.union(otherRows);
+	}
+
+	/*
+	 * Keys with more than hotKeyFraction of the rows of batch, most frequent first.
+	 */
+	Object[] hotKeys(Dataset<Row> batch, String streamKey) {
+		long rows = batch.count();
+		long threshold = Math.max(1, (long) (rows * hotKeyFraction));
+		List<Row> counts = batch.filter(col(streamKey).isNotNull())
+				.groupBy(col(streamKey).cast("string").as("key")).count()
+				.filter(col("count").gt(threshold))
+				.orderBy(desc("count"))
+				.limit(maxHotKeys)
+				.collectAsList();
+		Object[] keys = new Object[counts.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = counts.get(i).getString(0);
+		}
+		if (keys.length > 0) {
+			log.info("Hot keys of " + rows + " rows, joined by broadcast: " + counts);
+		}
+		return keys;
+	}
+
+	private synchronized Dataset<Row> dimension() {
+		if (dimension == null || (ttlMillis > 0 && System.currentTimeMillis() - loadedAt >= ttlMillis)) {
+			Dataset<Row> previous = dimension;
+			dimension = loader.load().persist(StorageLevel.MEMORY_AND_DISK());
+			loadedAt = System.currentTimeMillis();
+			log.info("Loaded dimension keyed by " + keyColumn + ": " + dimension.count() + " rows");
+			if (previous != null) {
+				previous.unpersist(false);
+			}
+		}
+		return dimension;
+	}
+}
@@ -0,0 +1,48 @@
+package example;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.spark.sql.SparkSession;
+
+/*
+ * State store settings of the stateful stages (Deduplicator, WindowedAggregator).
+ *
+ * The default provider, the only one of Spark 3.0, keeps all state in executor heap, which is what runs
+ * executors out of memory under sustained load. state.provider selects another provider, e.g. RocksDB
+ * (ROCKSDB_PROVIDER), which keeps state off-heap and on local disk: it ships with Spark 3.2 and later, or as
+ * a separate jar. If the class is not on the classpath the pipeline falls back to the default provider
+ * instead of failing on the first batch.
+ */
+public class StateStores {
+
+	private static final Logger log = LogManager.getLogger(StateStores.class);
+
+	public static final String PROVIDER_PROPERTY = "spark.sql.streaming.stateStore.providerClass";
+	public static final String MAINTENANCE_PROPERTY = "spark.sql.streaming.stateStore.maintenanceInterval";
+	public static final String ROCKSDB_PROVIDER =
+			"org.apache.spark.sql.execution.streaming.state.RocksDBStateStoreProvider";
+	public static final String HDFS_PROVIDER =
+			"org.apache.spark.sql.execution.streaming.state.HDFSBackedStateStoreProvider";
+
+	public static SparkSession.Builder configure(SparkSession.Builder builder, PipelineConfig config) {
+		builder.config(PROVIDER_PROPERTY, provider(config.get("state.provider", HDFS_PROVIDER)));
+		if (config.has("state.maintenanceInterval")) {
+			builder.config(MAINTENANCE_PROPERTY, config.get("state.maintenanceInterval"));
+		}
+		return builder;
+	}
+
+	/*
+	 * providerClass if it can be loaded, else the default HDFS backed provider.
+	 */
+	public static String provider(String providerClass) {
+		try {
+			Class.forName(providerClass, false, StateStores.class.getClassLoader());
+			return providerClass;
+		} catch (ClassNotFoundException e) {
+			log.warn("State store provider " + providerClass + " not found, state is kept in heap by "
+					+ HDFS_PROVIDER);
+			return HDFS_PROVIDER;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package example;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.DecimalType;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.LongAccumulator;
+
+import static org.apache.spark.sql.functions.col;
+
+/*
+ * Decodes the Kafka value straight from its bytes into the fields of a flat schema (decode.schema).
+ *
+ * The schema is a projection: fields of the record that are not in it are skipped and fields missing from
+ * the record are null, so producers can add or drop fields without breaking the pipeline. Records that
+ * cannot be decoded are kept in the _corrupt_record column (with all fields null) so they can be routed to
+ * a side output instead of silently turning into null rows. Subclasses implement one wire format; see
+ * ValueDecoders for the configuration.
+ */
+public abstract class ValueDecoder implements MapPartitionsFunction<Row, Row> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String CORRUPT_RECORD_COLUMN = "_corrupt_record";
+
+	/*
+	 * Decodes the records of one partition; may keep buffers and lookup tables between records.
+	 */
+	protected interface RecordDecoder {
+		void decode(byte[] value, Object[] values) throws Exception;
+	}
+
+	protected final StructType schema;
+	private LongAccumulator errors;
+	private String timestampColumn;
+
+	protected ValueDecoder(StructType schema) {
+		this.schema = schema;
+	}
+
+	/*
+	 * Count the records that could not be decoded, e.g. PipelineMetrics.getDecodeErrors().
+	 */
+	public ValueDecoder withErrorCounter(LongAccumulator errors) {
+		this.errors = errors;
+		return this;
+	}
+
+	/*
+	 * Keep the timestamp of the Kafka records in column, e.g. as the event time of stateful stages.
+	 */
+	public ValueDecoder withTimestamp(String column) {
+		this.timestampColumn = column;
+		return this;
+	}
+
+	/*
+	 * Decode the value column of a Kafka source. The result has the schema fields, the timestamp column if
+	 * one was set, and _corrupt_record.
+	 */
+	public Dataset<Row> decode(Dataset<Row> kafka) {
+		Dataset<Row> input = timestampColumn == null ? kafka.select(col("value"))
+				: kafka.select(col("value"), col("timestamp"));
+		return input.filter(col("value").isNotNull())
+				.mapPartitions(this, RowEncoder.apply(outputSchema()));
+	}
+
+	/*
+	 * Successfully decoded records, without the _corrupt_record column.
+	 */
+	public static Dataset<Row> valid(Dataset<Row> decoded) {
+		return decoded.filter(col(CORRUPT_RECORD_COLUMN).isNull()).drop(CORRUPT_RECORD_COLUMN);
+	}
+
+	/*
+	 * Side output of the records that could not be decoded, as the original text (base64 for binary formats).
+	 */
+	public static Dataset<Row> malformed(Dataset<Row> decoded) {
+		return decoded.filter(col(CORRUPT_RECORD_COLUMN).isNotNull()).select(col(CORRUPT_RECORD_COLUMN));
+	}
+
+	public StructType outputSchema() {
+		StructType output = timestampColumn == null ? schema
+				: schema.add(timestampColumn, DataTypes.TimestampType);
+		return output.add(CORRUPT_RECORD_COLUMN, DataTypes.StringType);
+	}
+
+	/*
+	 * Called once per partition, on the executor.
+	 */
+	protected abstract RecordDecoder newRecordDecoder();
+
+	/*
+	 * The _corrupt_record value of a record that could not be decoded.
+	 */
+	protected String corruptRecord(byte[] value) {
+		return Base64.getEncoder().encodeToString(value);
+	}
+
+	@Override
+	public Iterator<Row> call(Iterator<Row> input) {
+		final RecordDecoder decoder = newRecordDecoder();
+		final int fields = schema.size();
+		final int width = timestampColumn == null ? fields + 1 : fields + 2;
+
+		return new Iterator<Row>() {
+			@Override
+			public boolean hasNext() {
+				return input.hasNext();
+			}
+
+			@Override
+			public Row next() {
+				if (!input.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Row record = input.next();
+				byte[] value = record.getAs(0);
+				Object[] values = new Object[width];
+				try {
+					decoder.decode(value, values);
+				} catch (Exception e) {
+					values = new Object[width];
+					values[width - 1] = corruptRecord(value);
+					if (errors != null) {
+						errors.add(1);
+					}
+				}
+				if (width > fields + 1) {
+					values[fields] = record.get(1);
+				}
+				return RowFactory.create(values);
+			}
+		};
+	}
+
+	/*
+	 * Converts a decoded value (Java, Avro or Protobuf representation) to the external type Spark expects
+	 * for type, e.g. epoch milliseconds to a Timestamp. Throws on values that do not fit the type.
+	 */
+	protected static Object convert(Object value, DataType type) {
+		if (value == null) {
+			return null;
+		}
+		if (DataTypes.StringType.equals(type)) {
+			return value.toString();
+		} else if (DataTypes.IntegerType.equals(type)) {
+			return Math.toIntExact(((Number) value).longValue());
+		} else if (DataTypes.LongType.equals(type)) {
+			return ((Number) value).longValue();
+		} else if (DataTypes.DoubleType.equals(type)) {
+			return ((Number) value).doubleValue();
+		} else if (DataTypes.FloatType.equals(type)) {
+			return ((Number) value).floatValue();
+		} else if (DataTypes.BooleanType.equals(type)) {
+			return (Boolean) value;
+		} else if (DataTypes.TimestampType.equals(type)) {
+			return value instanceof Timestamp ? value : new Timestamp(((Number) value).longValue());
+		} else if (DataTypes.DateType.equals(type)) {
+			return value instanceof Date ? value : Date.valueOf(LocalDate.ofEpochDay(((Number) value).longValue()));
+		} else if (DataTypes.BinaryType.equals(type)) {
+			if (value instanceof ByteBuffer) {
+				ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				return bytes;
+			}
+			return (byte[]) value;
+		} else if (type instanceof DecimalType) {
+			return value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+		}
+		throw new IllegalArgumentException("Unsupported type " + type.simpleString());
+	}
+}
@@ -0,0 +1,50 @@
+package example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.types.StructType;
+
+/*
+ * Creates the value decoder of the pipeline configuration.
+ *
+ * decode.format is json (default), avro or protobuf, and decode.schema is the projection in all cases.
+ * Avro reads its writer schema from decode.avro.schemaFile, Protobuf its descriptor set from
+ * decode.protobuf.descriptorFile and the message type from decode.protobuf.messageType. The files are read
+ * once on the driver, from a local path or from Object Storage (oci://bucket@namespace/path).
+ */
+public class ValueDecoders {
+
+	public static ValueDecoder fromConfig(PipelineConfig config, Configuration hadoopConfig) throws IOException {
+		StructType schema = config.getSchema("decode.schema");
+		String format = config.get("decode.format", "json");
+		switch (format) {
+			case "json":
+				return new JsonValueDecoder(schema);
+			case "avro":
+				return new AvroValueDecoder(schema,
+						new String(read(config.get("decode.avro.schemaFile"), hadoopConfig), StandardCharsets.UTF_8));
+			case "protobuf":
+				return new ProtobufValueDecoder(schema, read(config.get("decode.protobuf.descriptorFile"), hadoopConfig),
+						config.get("decode.protobuf.messageType"));
+			default:
+				throw new IllegalArgumentException("Unknown decode.format " + format + ", use json, avro or protobuf");
+		}
+	}
+
+	static byte[] read(String file, Configuration hadoopConfig) throws IOException {
+		Path path = new Path(file);
+		URI uri = path.toUri();
+		FileSystem fs = "oci".equals(uri.getScheme()) ? OciClientRegistry.getFilesystem(uri, hadoopConfig)
+				: path.getFileSystem(hadoopConfig);
+		try (InputStream in = fs.open(path)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package example;
+
+import com.oracle.bmc.secrets.SecretsClient;
+
+/*
+ * Reads the current version of a secret from OCI Vault on every call, see Example.getSecret.
+ */
+public class VaultSecretProvider implements SecretProvider {
+
+	private final SecretsClient secretsClient;
+
+	public VaultSecretProvider(SecretsClient secretsClient) {
+		this.secretsClient = secretsClient;
+	}
+
+	@Override
+	public byte[] getSecret(String secretOcid) {
+		return Example.getSecret(secretOcid, secretsClient);
+	}
+}
@@ -0,0 +1,73 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.expr;
+import static org.apache.spark.sql.functions.window;
+
+/*
+ * Streaming aggregation per event time window and group columns, e.g. per country counts and area/GDP
+ * averages of the enriched organizations.
+ *
+ * Meant to run in update mode: every trigger emits the windows that changed, and the state of a window is
+ * dropped once the watermark has passed its end. The window is flattened into window_start/window_end
+ * columns so the result can be written by any BatchSink.
+ */
+public class WindowedAggregator {
+
+	private final String eventTimeColumn;
+	private final String windowDuration;
+	private final String slideDuration;
+	private final String watermarkDelay;
+	private final List<String> groupBy;
+	private final List<String> aggregates;
+
+	/*
+	 * aggregates are SQL expressions, e.g. "count(*) AS organizations". slideDuration may be null for
+	 * tumbling windows.
+	 */
+	public WindowedAggregator(String eventTimeColumn, String windowDuration, String slideDuration,
+							  String watermarkDelay, List<String> groupBy, List<String> aggregates) {
+		if (aggregates.isEmpty()) {
+			throw new IllegalArgumentException("No aggregate expressions");
+		}
+		this.eventTimeColumn = eventTimeColumn;
+		this.windowDuration = windowDuration;
+		this.slideDuration = slideDuration == null ? windowDuration : slideDuration;
+		this.watermarkDelay = watermarkDelay;
+		this.groupBy = groupBy;
+		this.aggregates = aggregates;
+	}
+
+	public Dataset<Row> apply(Dataset<Row> stream) {
+		List<Column> keys = new ArrayList<>();
+		keys.add(window(col(eventTimeColumn), windowDuration, slideDuration).as("window"));
+		for (String column : groupBy) {
+			keys.add(col(column));
+		}
+		List<Column> values = new ArrayList<>();
+		for (String aggregate : aggregates) {
+			values.add(expr(aggregate));
+		}
+		Dataset<Row> aggregated = stream
+				.withWatermark(eventTimeColumn, watermarkDelay)
+				.groupBy(keys.toArray(new Column[0]))
+				.agg(values.get(0), values.subList(1, values.size()).toArray(new Column[0]));
+
+		List<Column> output = new ArrayList<>();
+		output.add(col("window.start").as("window_start"));
+		output.add(col("window.end").as("window_end"));
+		for (String column : aggregated.columns()) {
+			if (!column.equals("window")) {
+				output.add(col("`" + column + "`"));
+			}
+		}
+		return aggregated.select(output.toArray(new Column[0]));
+	}
+}
@@ -0,0 +1,184 @@
+package example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * ReadOptimizedFileSystem over the local filesystem, with chunks small enough for a file of a few KB to span
+ * many of them.
+ */
+public class ReadOptimizedFileSystemTest {
+
+	private static final int CHUNK_SIZE = 1000;
+
+	private java.nio.file.Path directory;
+	private java.nio.file.Path cachedDirectory;
+	private java.nio.file.Path liveDirectory;
+	private ReadOptimizedFileSystem fs;
+	private byte[] content;
+	private java.nio.file.Path file;
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("readopt-test");
+		cachedDirectory = Files.createDirectories(directory.resolve("cached"));
+		liveDirectory = Files.createDirectories(directory.resolve("live"));
+
+		Configuration conf = new Configuration();
+		conf.setInt(ReadOptimizedFileSystem.CHUNK_SIZE, CHUNK_SIZE);
+		conf.setInt(ReadOptimizedFileSystem.MIN_SIZE, 0);
+		conf.setInt(ReadOptimizedFileSystem.READ_AHEAD, 3);
+		conf.setInt(ReadOptimizedFileSystem.THREADS, 4);
+		conf.setInt(ReadOptimizedFileSystem.MAX_BUFFERS, 2);
+		conf.set(ReadOptimizedFileSystem.CACHE_PREFIXES, cachedDirectory.toUri().toString());
+		fs = new ReadOptimizedFileSystem(FileSystem.getLocal(conf).getRawFileSystem());
+		fs.initialize(URI.create("file:///"), conf);
+
+		content = new byte[10 * CHUNK_SIZE + 500];
+		new Random(1).nextBytes(content);
+		file = liveDirectory.resolve("data");
+		Files.write(file, content);
+		path = new Path(file.toUri());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		fs.close();
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	@Test
+	public void readsAcrossChunkBoundaries() throws IOException {
+		try (FSDataInputStream in = fs.open(path)) {
+			assertArrayEquals(content, readAll(in, 777));
+		}
+		try (FSDataInputStream in = fs.open(path)) {
+			in.seek(CHUNK_SIZE - 2);
+			for (int i = CHUNK_SIZE - 2; i < CHUNK_SIZE + 2; i++) {
+				assertEquals("byte " + i, content[i] & 0xff, in.read());
+			}
+		}
+	}
+
+	@Test
+	public void seeksAndPositionedReads() throws IOException {
+		try (FSDataInputStream in = fs.open(path)) {
+			in.seek(5 * CHUNK_SIZE + 500);
+			assertArrayEquals(range(5 * CHUNK_SIZE + 500, CHUNK_SIZE), readFully(in, CHUNK_SIZE));
+			in.seek(10);
+			assertArrayEquals(range(10, 2 * CHUNK_SIZE), readFully(in, 2 * CHUNK_SIZE));
+
+			byte[] tail = new byte[CHUNK_SIZE + 10];
+			in.readFully(content.length - tail.length, tail);
+			assertArrayEquals(range(content.length - tail.length, tail.length), tail);
+			assertEquals(10 + 2 * CHUNK_SIZE, in.getPos());
+
+			in.seek(content.length);
+			assertEquals(-1, in.read());
+			try {
+				in.seek(content.length + 1);
+				fail("seek past the end");
+			} catch (EOFException expected) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	public void failedRangedReadIsFetchedAgain() throws Exception {
+		try (FSDataInputStream in = fs.open(path)) {
+			try (RandomAccessFile truncate = new RandomAccessFile(file.toFile(), "rw")) {
+				truncate.setLength(2 * CHUNK_SIZE + 500);
+			}
+			in.seek(5 * CHUNK_SIZE);
+			try {
+				in.read();
+				fail("read of a truncated range");
+			} catch (IOException expected) {
+				// Expected.
+			}
+			// Let the read-ahead of the failed chunk fail too: it must not fail the reads after the restore.
+			Thread.sleep(500);
+			Files.write(file, content);
+			in.seek(5 * CHUNK_SIZE);
+			assertArrayEquals(range(5 * CHUNK_SIZE, content.length - 5 * CHUNK_SIZE), readAll(in, 4096));
+		}
+	}
+
+	@Test
+	public void cachesMetadataOnlyUnderCachePrefixes() throws IOException {
+		long requests = fs.getMetadataRequests();
+		fs.listStatus(new Path(liveDirectory.toUri()));
+		fs.listStatus(new Path(liveDirectory.toUri()));
+		fs.getFileStatus(path);
+		assertEquals("hits outside cachePrefixes", 0, fs.getMetadataHits());
+		assertEquals("requests outside cachePrefixes", requests + 3, fs.getMetadataRequests());
+
+		java.nio.file.Path cachedFile = cachedDirectory.resolve("data");
+		Files.write(cachedFile, content);
+		Path cachedPath = new Path(cachedFile.toUri());
+		fs.listStatus(new Path(cachedDirectory.toUri()));
+		fs.listStatus(new Path(cachedDirectory.toUri()));
+		fs.getFileStatus(cachedPath);
+		assertEquals("hits under cachePrefixes", 2, fs.getMetadataHits());
+		assertEquals("requests under cachePrefixes", requests + 4, fs.getMetadataRequests());
+
+		// Any change through the filesystem clears the cache.
+		fs.mkdirs(new Path(directory.resolve("other").toUri()));
+		fs.getFileStatus(cachedPath);
+		assertEquals("hits after a change", 2, fs.getMetadataHits());
+	}
+
+	@Test
+	public void openReadsTheCurrentLength() throws IOException {
+		java.nio.file.Path cachedFile = cachedDirectory.resolve("data");
+		Files.write(cachedFile, range(0, 3 * CHUNK_SIZE));
+		Path cachedPath = new Path(cachedFile.toUri());
+		assertEquals(3 * CHUNK_SIZE, fs.getFileStatus(cachedPath).getLen());
+
+		Files.write(cachedFile, content);
+		assertEquals("cached length", 3 * CHUNK_SIZE, fs.getFileStatus(cachedPath).getLen());
+		try (FSDataInputStream in = fs.open(cachedPath)) {
+			assertArrayEquals(content, readAll(in, 4096));
+		}
+	}
+
+	private byte[] range(int from, int length) {
+		return Arrays.copyOfRange(content, from, from + length);
+	}
+
+	private static byte[] readAll(FSDataInputStream in, int bufferSize) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[bufferSize];
+		for (int n; (n = in.read(buffer)) != -1;) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] readFully(FSDataInputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}